@@ -1,26 +1,51 @@
 package org.bofus.sumcompare;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.bofus.sumcompare.localutil.ChecksumCache;
+import org.bofus.sumcompare.localutil.ChecksumXattrs;
+import org.bofus.sumcompare.localutil.CopyEngine;
+import org.bofus.sumcompare.localutil.CopyVerifier;
 import org.bofus.sumcompare.localutil.DateFolderOrganizer;
 import org.bofus.sumcompare.localutil.FileTypeDetector;
 import org.bofus.sumcompare.localutil.FileUtilsLocal;
+import org.bofus.sumcompare.localutil.IoScheduler;
+import org.bofus.sumcompare.localutil.PhysicalOrder;
+import org.bofus.sumcompare.localutil.PipelineStage;
 import org.bofus.sumcompare.localutil.ReportUtils;
+import org.bofus.sumcompare.localutil.SourceWatcher;
+import org.bofus.sumcompare.localutil.TaskExecutors;
+import org.bofus.sumcompare.localutil.ThreadAutoTuner;
+import org.bofus.sumcompare.localutil.TargetDeduplicator;
+import org.bofus.sumcompare.localutil.TargetIndex;
+import org.bofus.sumcompare.localutil.TieredChecksumEngine;
 import org.bofus.sumcompare.localutil.UserUtilities;
 import org.bofus.sumcompare.model.FileMetadata;
+import org.bofus.sumcompare.model.FileRecord;
 import org.bofus.sumcompare.model.PropertiesObject;
+import org.bofus.sumcompare.model.SourceFileObject;
 import org.bofus.sumcompare.singletons.CopiedFileHashMapSingleton;
+import org.bofus.sumcompare.singletons.CopiedFileSizeMapSingleton;
+import org.bofus.sumcompare.singletons.ExistingTargetFileObjectArraySingleton;
 import org.bofus.sumcompare.singletons.MatchingFileHashMapSingleton;
 import org.bofus.sumcompare.singletons.SourceFileArraySingleton;
 import org.bofus.sumcompare.singletons.TargetFileArraySingleton;
+import org.bofus.sumcompare.singletons.TargetFileFingerprintMapSingleton;
 import org.bofus.sumcompare.singletons.TargetFileHashMapSingleton;
 
 import lombok.extern.slf4j.Slf4j;
@@ -28,7 +53,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Main {
 
+  // Verification stage for written copies, null unless requested
+  private static CopyVerifier copyVerifier;
+
   public static void main(String[] args) throws Exception {
+    // Sub-commands working on the persistent target index
+    if (args.length > 0 && (args[0].equals("index") || args[0].equals("lookup"))) {
+      System.exit(runIndexCommand(args));
+    }
+
     PropertiesObject propertiesObject = new PropertiesObject();
 
     // -------------------------------------------------------------
@@ -63,7 +96,7 @@ public class Main {
         "z",
         "chksumtype",
         true,
-        "The type of checksum data to use for comparison (SHA1, MD5, XXHASH32, XXHASH64)	<REQUIRED>");
+        "The type of checksum data to use for comparison (SHA1, MD5, XXHASH32, XXHASH64, XXH3-64, XXH3-128, XXH3-TREE)	<REQUIRED>");
     cliOptions.addOption(
         "df",
         "date-folders",
@@ -134,6 +167,71 @@ public class Main {
         "thread-count",
         true,
         "Number of threads for parallel processing (default: number of CPU cores)");
+    cliOptions.addOption(
+        "ct",
+        "copy-threads",
+        true,
+        "Number of threads copying files, separate from the hashing threads (default: the thread count)");
+    cliOptions.addOption(
+        "at",
+        "auto-tune",
+        false,
+        "Tune the hash and copy thread counts during the run by measuring throughput, starting from -tc and -ct (default: false)");
+    cliOptions.addOption(
+        "em",
+        "execution-mode",
+        true,
+        "Threads for blocking I/O: PLATFORM (thread counts as given), VIRTUAL (virtual threads for I/O, digests on a CPU-sized pool) (default: PLATFORM)");
+    cliOptions.addOption(
+        "dc",
+        "device-concurrency",
+        true,
+        "Concurrent file operations allowed per device, for all devices (default: 2 for rotational disks, 32 otherwise, detected per device)");
+    cliOptions.addOption(
+        "po",
+        "physical-order",
+        false,
+        "Hash target files in inode order with a few sequential readers, to avoid seeking on rotational disks (default: false)");
+    cliOptions.addOption(
+        "hm",
+        "hash-mode",
+        true,
+        "How files are read for hashing: STREAM, CHANNEL (direct buffer), MMAP (memory-mapped) (default: STREAM)");
+    cliOptions.addOption(
+        "cc",
+        "checksum-cache",
+        false,
+        "Cache checksums by file identity, size and mtime in ~/.sumcompare/cache, so unchanged files are not re-read on later runs");
+    cliOptions.addOption(
+        "xa",
+        "xattr-checksums",
+        false,
+        "Store checksums in user.sumcompare.<type> extended attributes of target files and trust them while size and mtime are unchanged");
+    cliOptions.addOption(
+        "ix",
+        "index",
+        false,
+        "Keep an on-disk checksum index of the target up to date (see the index and lookup commands)");
+    cliOptions.addOption(
+        "cm",
+        "copy-method",
+        true,
+        "How files are copied: AUTO (reflink within a file system, else hash-while-copy or kernel copy), REFLINK, KERNEL (copy_file_range), TRANSFER (transferTo), STREAM (default: AUTO)");
+    cliOptions.addOption(
+        "dd",
+        "dedupe-target",
+        true,
+        "Replace verified duplicates inside the target with links to one copy: HARDLINK or REFLINK (honours dry run)");
+    cliOptions.addOption(
+        "vc",
+        "verify-copies",
+        false,
+        "Read every copy back with direct I/O in a separate stage and compare it with the checksum taken while copying");
+    cliOptions.addOption(
+        "w",
+        "watch",
+        false,
+        "After the run, keep watching the source and process new or modified files as they settle (stop with Ctrl+C)");
     cliOptions.addOption("h", "help", false, "Shows this help screen");
 
     // -------------------------------------------------------------
@@ -309,6 +407,130 @@ public class Main {
         propertiesObject.setThreadCount(Runtime.getRuntime().availableProcessors());
       }
 
+      if (cmdLine.hasOption("ct")) {
+        try {
+          int copyThreadCount = Integer.parseInt(cmdLine.getOptionValue("ct"));
+          if (copyThreadCount > 0) {
+            propertiesObject.setCopyThreadCount(copyThreadCount);
+          } else {
+            log.warn("Invalid copy thread count (must be > 0), using the thread count");
+            propertiesObject.setCopyThreadCount(propertiesObject.getThreadCount());
+          }
+        } catch (NumberFormatException e) {
+          log.warn("Invalid copy thread count format, using the thread count");
+          propertiesObject.setCopyThreadCount(propertiesObject.getThreadCount());
+        }
+      } else {
+        propertiesObject.setCopyThreadCount(propertiesObject.getThreadCount());
+      }
+
+      if (cmdLine.hasOption("at")) {
+        propertiesObject.setAutoTune(true);
+      } else {
+        propertiesObject.setAutoTune(false);
+      }
+
+      if (cmdLine.hasOption("em")) {
+        String executionModeStr = cmdLine.getOptionValue("em").toUpperCase();
+        try {
+          propertiesObject.setExecutionMode(TaskExecutors.ExecutionMode.valueOf(executionModeStr));
+        } catch (IllegalArgumentException e) {
+          log.error("Invalid execution mode: {}. Using PLATFORM as default.", executionModeStr);
+          propertiesObject.setExecutionMode(TaskExecutors.ExecutionMode.PLATFORM);
+        }
+      } else {
+        propertiesObject.setExecutionMode(TaskExecutors.ExecutionMode.PLATFORM);
+      }
+      TaskExecutors.setExecutionMode(propertiesObject.getExecutionMode());
+
+      if (cmdLine.hasOption("dc")) {
+        try {
+          int deviceConcurrency = Integer.parseInt(cmdLine.getOptionValue("dc"));
+          if (deviceConcurrency > 0) {
+            propertiesObject.setDeviceConcurrency(deviceConcurrency);
+          } else {
+            log.warn("Invalid device concurrency (must be > 0), detecting per device");
+          }
+        } catch (NumberFormatException e) {
+          log.warn("Invalid device concurrency format, detecting per device");
+        }
+      }
+      IoScheduler.setConcurrencyOverride(propertiesObject.getDeviceConcurrency());
+
+      if (cmdLine.hasOption("po")) {
+        propertiesObject.setPhysicalOrder(true);
+      } else {
+        propertiesObject.setPhysicalOrder(false);
+      }
+      PhysicalOrder.setEnabled(propertiesObject.isPhysicalOrder());
+
+      if (cmdLine.hasOption("hm")) {
+        String hashModeStr = cmdLine.getOptionValue("hm").toUpperCase();
+        try {
+          propertiesObject.setHashReadMode(FileUtilsLocal.HashReadMode.valueOf(hashModeStr));
+        } catch (IllegalArgumentException e) {
+          log.error("Invalid hash mode: {}. Using STREAM as default.", hashModeStr);
+          propertiesObject.setHashReadMode(FileUtilsLocal.HashReadMode.STREAM);
+        }
+      } else {
+        propertiesObject.setHashReadMode(FileUtilsLocal.HashReadMode.STREAM);
+      }
+      FileUtilsLocal.setHashReadMode(propertiesObject.getHashReadMode());
+
+      if (cmdLine.hasOption("cc")) {
+        propertiesObject.setUseChecksumCache(true);
+        ChecksumCache.enable(ChecksumCache.getDefaultDirectory());
+      } else {
+        propertiesObject.setUseChecksumCache(false);
+      }
+
+      if (cmdLine.hasOption("xa")) {
+        propertiesObject.setUseXattrChecksums(true);
+        ChecksumXattrs.enable(propertiesObject.getTargetLocation());
+      } else {
+        propertiesObject.setUseXattrChecksums(false);
+      }
+
+      if (cmdLine.hasOption("cm")) {
+        String copyMethodStr = cmdLine.getOptionValue("cm").toUpperCase();
+        try {
+          propertiesObject.setCopyMethod(CopyEngine.CopyMethod.valueOf(copyMethodStr));
+        } catch (IllegalArgumentException e) {
+          log.error("Invalid copy method: {}. Using AUTO as default.", copyMethodStr);
+          propertiesObject.setCopyMethod(CopyEngine.CopyMethod.AUTO);
+        }
+      } else {
+        propertiesObject.setCopyMethod(CopyEngine.CopyMethod.AUTO);
+      }
+      CopyEngine.setCopyMethod(propertiesObject.getCopyMethod());
+
+      if (cmdLine.hasOption("dd")) {
+        String dedupeMethodStr = cmdLine.getOptionValue("dd").toUpperCase();
+        try {
+          propertiesObject.setDedupeMethod(TargetDeduplicator.DedupeMethod.valueOf(dedupeMethodStr));
+        } catch (IllegalArgumentException e) {
+          log.error("Invalid dedupe method: {}. Target deduplication disabled.", dedupeMethodStr);
+        }
+      }
+
+      if (cmdLine.hasOption("vc")) {
+        propertiesObject.setVerifyCopies(true);
+      } else {
+        propertiesObject.setVerifyCopies(false);
+      }
+
+      if (cmdLine.hasOption("w")) {
+        propertiesObject.setWatchSource(true);
+      } else {
+        propertiesObject.setWatchSource(false);
+      }
+
+      if (cmdLine.hasOption("ix")) {
+        propertiesObject.setMaintainIndex(true);
+      } else {
+        propertiesObject.setMaintainIndex(false);
+      }
+
       if (cmdLine.hasOption("h")) {
         showHelp(cliOptions);
       }
@@ -338,21 +560,42 @@ public class Main {
           "Backup first not specified on the command line, we will not backup the source files first!!!");
     }
 
-    // Step 2 & 4: Scan target and source directories in parallel
+    TargetIndex targetIndex = null;
+    if (propertiesObject.isMaintainIndex()) {
+      MessageDigest digestType = propertiesObject.getDigestType();
+      targetIndex = TargetIndex.openForWriting(
+          TargetIndex.getIndexFile(propertiesObject.getTargetLocation(), digestType.getAlgorithm()),
+          digestType.getAlgorithm(),
+          digestType.getDigestLength());
+      TargetIndex.setActive(targetIndex);
+      log.info("Maintaining target index: {}", targetIndex.getIndexFile());
+    }
+
+    // Watch the source from before the walk, so files created or modified
+    // while the initial run goes on are processed afterwards
+    SourceWatcher watcher = null;
+    if (propertiesObject.isWatchSource()) {
+      watcher = new SourceWatcher(
+          Paths.get(propertiesObject.getSourceLocation()), SourceWatcher.DEFAULT_QUIET_PERIOD_MS);
+      watcher.start();
+    }
+
+    // Step 2 & 4: Scan target and source directories in parallel. The source
+    // walk streams straight into the processing pipeline, whose bounded queues
+    // hold it back until the target is ready and the stages keep up
     log.info("Scanning directories in parallel...");
+    SourcePipeline pipeline = new SourcePipeline(propertiesObject, propertiesObject.isAutoTune());
+    log.info("Processing pipeline: {} hash, {} decide, {} copy threads{}",
+        pipeline.hashStage.getConcurrency(),
+        pipeline.decideStage.getConcurrency(),
+        pipeline.copyStage.getConcurrency(),
+        propertiesObject.isAutoTune() ? " (auto-tuned)" : "");
 
     Thread targetScanThread = new Thread(() -> {
       try {
         FileUtilsLocal.getTargetDirectoryContentsArray(propertiesObject.getTargetLocation());
         int targetCount = TargetFileArraySingleton.getInstance().getArray().size();
         log.info("Found " + targetCount + " files in target");
-
-        // Step 3: Compute target checksums
-        log.info("Computing target checksums...");
-        FileUtilsLocal.createTargetFileChecksumMap(
-            TargetFileArraySingleton.getInstance(),
-            propertiesObject.getDigestType());
-        log.info("Target checksums completed");
       } catch (Exception e) {
         log.error("Error scanning target directory", e);
       }
@@ -360,8 +603,8 @@ public class Main {
 
     Thread sourceScanThread = new Thread(() -> {
       try {
-        FileUtilsLocal.getSourceDirectoryContentsArray(propertiesObject.getSourceLocation());
-        int sourceCount = SourceFileArraySingleton.getInstance().getArray().size();
+        long sourceCount = FileUtilsLocal.walkSourceDirectory(
+            propertiesObject.getSourceLocation(), pipeline.hashStage);
         log.info("Found " + sourceCount + " files in source");
       } catch (Exception e) {
         log.error("Error scanning source directory", e);
@@ -372,143 +615,55 @@ public class Main {
     targetScanThread.start();
     sourceScanThread.start();
 
-    // Wait for both to complete
+    // Source files can only be compared once the whole target is known
     targetScanThread.join();
-    sourceScanThread.join();
 
-    log.info("Directory scanning completed");
+    log.info("Target scanning completed");
+
+    // Step 3: Compute target checksums for existing duplicates inside the target;
+    // all other target files are compared lazily against the source
+    log.info("Computing target checksums...");
+    FileUtilsLocal.createTargetFileChecksumMap(
+        TargetFileArraySingleton.getInstance(),
+        propertiesObject.getDigestType());
+    log.info("Target checksums completed");
+
+    // Step 3b: Replace duplicates inside the target with links, if requested
+    if (propertiesObject.getDedupeMethod() != null) {
+      log.info("Deduplicating target...");
+      TargetDeduplicator.dedupe(
+          ExistingTargetFileObjectArraySingleton.getInstance().getArray(),
+          propertiesObject.getDedupeMethod(),
+          propertiesObject.isDryRun());
+    }
 
     log.info("Processing source files...");
     log.debug(
-        "Iterating through the source array, and checking if there is already a matching checksum in the target array");
+        "Checking each source file for a matching checksum in the target as the source walk finds it");
 
-    // Use ExecutorService with configurable thread count
-    int threadCount = propertiesObject.getThreadCount();
-    log.info("Using {} threads for parallel processing", threadCount);
-    java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(threadCount);
-    java.util.List<String> sourceFiles = SourceFileArraySingleton.getInstance().getArray();
-    java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(sourceFiles.size());
-
-    for (String thisSourceFileName : sourceFiles) {
-      executor.submit(() -> {
-        try {
-          File thisSourceFile = new File(thisSourceFileName);
-
-          // Capture file metadata
-          FileMetadata metadata = FileMetadata.fromFile(thisSourceFile);
-
-          // Detect file type
-          String fileTypeDesc = FileTypeDetector.getFileTypeDescription(thisSourceFile);
-
-          // Clone digest for thread-safety
-          MessageDigest threadDigest = (MessageDigest) propertiesObject.getDigestType().clone();
-          String thisSourceChecksum = FileUtilsLocal.getFileChecksum(threadDigest, thisSourceFile);
-
-          // Synchronized access to shared collections
-          synchronized (TargetFileHashMapSingleton.getInstance().getMap()) {
-            if (TargetFileHashMapSingleton.getInstance().getMap().containsKey(thisSourceChecksum)) {
-              String existingfile = TargetFileHashMapSingleton.getInstance().getMap().get(thisSourceChecksum);
-              String thisSourceFileNameOnly = FileUtilsLocal.getFileName(thisSourceFileName);
-              String thisTargetFileNameOnly = FileUtilsLocal.getFileName(existingfile);
-
-              if (thisSourceFileNameOnly.trim().equals(thisTargetFileNameOnly.trim())) {
-                // if this is a dryrun, add to the map, so that we can create an output file of
-                // all files
-                if (propertiesObject.isDryRun() == true) {
-                  MatchingFileHashMapSingleton.getInstance().addToMap(thisSourceFileName, existingfile);
-                }
-              } else {
-                log.info(
-                    String.format(
-                        "%s [%s] seems to be a copy of file:\r\n%s\r\nMetadata: %s",
-                        thisSourceFileName, fileTypeDesc, existingfile, metadata.getSummary()));
-                MatchingFileHashMapSingleton.getInstance().addToMap(thisSourceFileName, existingfile);
-              }
-
-            } else {
-              String targetFileName = FileUtilsLocal.getFileName(thisSourceFileName);
-              String targetFullPath = null;
-              String sourceBasePath = null;
-              File targetFile = null;
-
-              // Use date-based folder organization if enabled
-              if (propertiesObject.isOrganizeDateFolders()) {
-                try {
-                  File baseTargetDir = new File(propertiesObject.getTargetLocation());
-                  targetFile = DateFolderOrganizer.generateDateBasedTargetPath(
-                      thisSourceFile,
-                      baseTargetDir,
-                      propertiesObject.getDateSource(),
-                      propertiesObject.getDatePattern(),
-                      propertiesObject.isKeepSourceStructure());
-                  targetFullPath = targetFile.getAbsolutePath();
-                } catch (Exception e) {
-                  log.error("Error generating date-based path for {}, falling back to standard path",
-                      thisSourceFileName,
-                      e);
-                  // Fallback to standard logic
-                  targetFullPath = propertiesObject.getTargetLocation() + File.separatorChar + targetFileName;
-                  targetFile = new File(targetFullPath);
-                }
-              } else if (propertiesObject.isKeepSourceStructure() == true) {
-                sourceBasePath = thisSourceFileName.replace(propertiesObject.getSourceLocation(), "");
-                String tempPath = FilenameUtils.getPath(sourceBasePath);
-                targetFullPath = propertiesObject.getTargetLocation()
-                    + File.separatorChar
-                    + tempPath
-                    + File.separatorChar
-                    + targetFileName;
-                targetFile = new File(targetFullPath);
-              } else {
-                targetFullPath = propertiesObject.getTargetLocation() + File.separatorChar + targetFileName;
-                targetFile = new File(targetFullPath);
-              }
-
-              CopiedFileHashMapSingleton.getInstance().getMap().put(thisSourceFileName, targetFullPath);
-              if (propertiesObject.isDryRun() == true) {
-                log.info(
-                    String.format("Would Copy File [%s]: %s to %s (%s)",
-                        fileTypeDesc, thisSourceFileName, targetFullPath, metadata.getSummary()));
-              } else {
-                // Ensure date-based folder exists before copying
-                if (propertiesObject.isOrganizeDateFolders()) {
-                  DateFolderOrganizer.ensureDateFolderExists(targetFile);
-                }
-                log.info(
-                    String.format("Copying [%s]: %s (%s)", fileTypeDesc, thisSourceFile.getName(),
-                        metadata.getSummary()));
-                FileUtils.copyFile(thisSourceFile, targetFile, propertiesObject.isPreserveFileDate());
-              }
-            }
-          }
-        } catch (Exception e) {
-          log.error("Error processing source file: " + thisSourceFileName, e);
-        } finally {
-          latch.countDown();
-        }
-      });
+    if (propertiesObject.isVerifyCopies() && !propertiesObject.isDryRun()) {
+      copyVerifier = new CopyVerifier(propertiesObject.getThreadCount());
     }
 
-    // Wait for all tasks to complete
-    try {
-      latch.await();
-    } catch (InterruptedException e) {
-      log.error("Processing was interrupted", e);
-      Thread.currentThread().interrupt();
+    // Hash, compare and copy source files while the source walk continues
+    pipeline.start();
+    sourceScanThread.join();
+    pipeline.finish();
+    if (copyVerifier != null) {
+      log.info("Waiting for copy verification...");
+      copyVerifier.awaitPending();
     }
 
-    // Shutdown executor
-    executor.shutdown();
-    try {
-      if (!executor.awaitTermination(60, java.util.concurrent.TimeUnit.SECONDS)) {
-        executor.shutdownNow();
-      }
-    } catch (InterruptedException e) {
-      executor.shutdownNow();
-      Thread.currentThread().interrupt();
+    log.info("All source files processed");
+
+    // Index the target files that were not hashed during this run
+    if (targetIndex != null) {
+      targetIndex.update(TargetFileArraySingleton.getInstance().getArray(), propertiesObject.getDigestType());
+      log.info("Target index holds {} checksums", targetIndex.size());
     }
 
-    log.info("All source files processed");
+    // Persist checksums computed during this run
+    ChecksumCache.saveAll();
 
     // Generate report if requested
     if (propertiesObject.isCreateOutputFile() == true) {
@@ -526,7 +681,603 @@ public class Main {
     log.info("================================================");
     log.info(String.format("Files copied: %d", copied));
     log.info(String.format("Duplicates found: %d", duplicates));
+    logVerificationResults();
     log.info("================================================");
+
+    // Step 5: Keep processing new source files as they arrive
+    if (watcher != null) {
+      watchSource(watcher, propertiesObject);
+    }
+
+    if (targetIndex != null) {
+      TargetIndex.setActive(null);
+      targetIndex.close();
+    }
+    if (copyVerifier != null) {
+      copyVerifier.shutdown();
+    }
+  }
+
+  /*************************************************
+   * Logs the results of copy verification, if enabled.
+   *************************************************/
+  private static void logVerificationResults() {
+    if (copyVerifier == null) {
+      return;
+    }
+    List<String> failures = copyVerifier.getFailures();
+    log.info(String.format("Copies verified: %d", copyVerifier.getVerifiedCount()));
+    if (!failures.isEmpty()) {
+      log.error(String.format("Copies that FAILED verification: %d", failures.size()));
+      for (String failure : failures) {
+        log.error("  " + failure);
+      }
+    }
+  }
+
+  /*************************************************
+   * Watches the source tree and processes new or
+   * modified files in batches, against the target
+   * state built by the initial run, until the
+   * process is stopped. Modified files are copied
+   * again over their earlier copy.
+   *
+   * @param watcher The watcher, started before the
+   *        initial run; closed when done
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static void watchSource(SourceWatcher watcher, PropertiesObject propertiesObject) throws Exception {
+    try (watcher) {
+      watcher.run(batch -> {
+        try {
+          int copiedBefore = CopiedFileHashMapSingleton.getInstance().getMap().size();
+          int duplicatesBefore = MatchingFileHashMapSingleton.getInstance().getMap().size();
+          SourcePipeline pipeline = new SourcePipeline(propertiesObject, false).start();
+          for (String changedFile : batch) {
+            try {
+              pipeline.hashStage.accept(
+                  FileRecord.read(SourceFileArraySingleton.getInstance().getArray(), Paths.get(changedFile)));
+            } catch (IOException e) {
+              log.warn("Cannot read attributes of {}: {}", changedFile, e.toString());
+            }
+          }
+          pipeline.finish();
+          if (copyVerifier != null) {
+            copyVerifier.awaitPending();
+          }
+          ChecksumCache.saveAll();
+          log.info(String.format("Batch done: %d copied, %d duplicates",
+              CopiedFileHashMapSingleton.getInstance().getMap().size() - copiedBefore,
+              MatchingFileHashMapSingleton.getInstance().getMap().size() - duplicatesBefore));
+        } catch (Exception e) {
+          log.error("Error processing batch of source files", e);
+        }
+      });
+    }
+  }
+
+  /*************************************************
+   * The stages source files pass through, each with
+   * its own threads and a bounded queue in front:
+   * hash (metadata, type and candidate checksum),
+   * decide (match against the target, pick the
+   * target path) and copy. A full queue blocks the
+   * stage feeding it, down to the source walk.
+   *************************************************/
+  private static class SourcePipeline {
+    // With auto-tuning, a tuned stage may grow to this many times its start
+    private static final int AUTO_TUNE_HEADROOM = 4;
+
+    private final PropertiesObject propertiesObject;
+    private final PipelineStage<SourceFileObject> copyStage;
+    private final PipelineStage<SourceFileObject> decideStage;
+    private final PipelineStage<FileRecord> hashStage;
+    private final ThreadAutoTuner autoTuner;
+
+    /*************************************************
+     * @param propertiesObject The run configuration
+     * @param autoTune Whether to tune the hash and copy
+     *        concurrency while running, starting from
+     *        the configured thread counts
+     *************************************************/
+    private SourcePipeline(PropertiesObject propertiesObject, boolean autoTune) throws Exception {
+      this.propertiesObject = propertiesObject;
+      // The singletons are created lazily, which is not thread-safe, so create
+      // them before any worker uses them
+      TargetFileHashMapSingleton.getInstance();
+      TargetFileFingerprintMapSingleton.getInstance();
+      CopiedFileHashMapSingleton.getInstance();
+      CopiedFileSizeMapSingleton.getInstance();
+      MatchingFileHashMapSingleton.getInstance();
+
+      int copyWorkers = TaskExecutors.ioWorkers(propertiesObject.getCopyThreadCount());
+      int hashWorkers = TaskExecutors.ioWorkers(propertiesObject.getThreadCount());
+      int headroom = autoTune ? AUTO_TUNE_HEADROOM : 1;
+
+      copyStage = new PipelineStage<SourceFileObject>(
+          "copy", copyWorkers * headroom, PipelineStage.DEFAULT_CAPACITY,
+          sourceFileObject -> copySourceFile(sourceFileObject, propertiesObject))
+          .countBytes(sourceFileObject -> sourceFileObject.getMetadata().getSizeBytes());
+      decideStage = new PipelineStage<SourceFileObject>(
+          "decide", hashWorkers, PipelineStage.DEFAULT_CAPACITY,
+          sourceFileObject -> {
+            if (decideSourceFile(sourceFileObject, propertiesObject)) {
+              copyStage.accept(sourceFileObject);
+            }
+          });
+      hashStage = new PipelineStage<FileRecord>(
+          "hash", hashWorkers * headroom, PipelineStage.DEFAULT_CAPACITY,
+          sourceRecord -> decideStage.accept(hashSourceFile(sourceRecord, propertiesObject)));
+
+      if (autoTune) {
+        copyStage.setConcurrency(copyWorkers);
+        hashStage.setConcurrency(hashWorkers);
+        autoTuner = new ThreadAutoTuner().add(hashStage).add(copyStage);
+      } else {
+        autoTuner = null;
+      }
+    }
+
+    private SourcePipeline start() {
+      copyStage.start();
+      decideStage.start();
+      hashStage.start();
+      if (autoTuner != null) {
+        autoTuner.start();
+      }
+      return this;
+    }
+
+    /*************************************************
+     * Waits until every queued source file has gone
+     * through all stages. Tuned thread counts are kept
+     * in the configuration for later runs (watch mode).
+     *************************************************/
+    private void finish() throws InterruptedException {
+      hashStage.finish();
+      decideStage.finish();
+      copyStage.finish();
+      if (autoTuner != null) {
+        autoTuner.close();
+        propertiesObject.setThreadCount(hashStage.getConcurrency());
+        propertiesObject.setCopyThreadCount(copyStage.getConcurrency());
+      }
+    }
+  }
+
+  /*************************************************
+   * Hash stage: computes the checksum of a source
+   * file, if a target file can have the same
+   * content.
+   *
+   * @param sourceRecord The source file, as found by
+   *        the walk
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static SourceFileObject hashSourceFile(FileRecord sourceRecord, PropertiesObject propertiesObject)
+      throws Exception {
+    SourceFileObject sourceFileObject = new SourceFileObject();
+    // The attributes were read by the walk, the file is not queried again; the
+    // path is rebuilt from its id once, here
+    FileMetadata metadata = FileMetadata.fromRecord(sourceRecord);
+    sourceFileObject.setMetadata(metadata);
+    String thisSourceFileName = metadata.getFilePath();
+    File thisSourceFile = new File(thisSourceFileName);
+    sourceFileObject.setSourceFileName(thisSourceFileName);
+    sourceFileObject.setSourceFile(thisSourceFile);
+
+    // The file type is detected when first logged, from the extension where
+    // possible; otherwise the hasher keeps the first bytes it reads for sniffing
+    boolean sniffType = !FileTypeDetector.isKnownByName(thisSourceFile.getName());
+    if (sniffType) {
+      FileTypeDetector.expectHead(thisSourceFileName);
+    }
+
+    // Compare by size, then by head/tail fingerprint, and only compute the full
+    // checksum when both collide with a target file (null means no candidate).
+    // Each read waits for a free slot on the device of the file it reads
+    // Clone digest for thread-safety
+    MessageDigest threadDigest = (MessageDigest) propertiesObject.getDigestType().clone();
+    try {
+      sourceFileObject.setChecksum(TieredChecksumEngine.getCandidateDigest(
+          threadDigest, thisSourceFile, metadata.getSizeBytes()));
+    } finally {
+      if (sniffType) {
+        sourceFileObject.setFileHead(FileTypeDetector.takeHead(thisSourceFileName));
+      }
+    }
+    return sourceFileObject;
+  }
+
+  /*************************************************
+   * Decide stage: records a source file as a
+   * duplicate of a target file, or picks its target
+   * path.
+   *
+   * @param sourceFileObject The hashed source file
+   * @param propertiesObject The run configuration
+   * @return true if the file has to be copied
+   *************************************************/
+  private static boolean decideSourceFile(SourceFileObject sourceFileObject, PropertiesObject propertiesObject)
+      throws Exception {
+    String thisSourceFileName = sourceFileObject.getSourceFileName();
+    File thisSourceFile = sourceFileObject.getSourceFile();
+    byte[] thisSourceChecksum = sourceFileObject.getChecksum();
+    FileMetadata metadata = sourceFileObject.getMetadata();
+
+    // A single lookup in the concurrent target map, no lock is held. Besides
+    // target files, the map holds the copies claimed earlier in this run
+    String existingfile = thisSourceChecksum == null
+        ? null
+        : TargetFileHashMapSingleton.getInstance().getPath(thisSourceChecksum);
+    if (existingfile != null) {
+      recordDuplicate(sourceFileObject, existingfile, propertiesObject);
+      return false;
+    }
+
+    String targetFileName = FileUtilsLocal.getFileName(thisSourceFileName);
+    String targetFullPath = null;
+    String sourceBasePath = null;
+    File targetFile = null;
+
+    // Use date-based folder organization if enabled
+    if (propertiesObject.isOrganizeDateFolders()) {
+      try {
+        File baseTargetDir = new File(propertiesObject.getTargetLocation());
+        targetFile = DateFolderOrganizer.generateDateBasedTargetPath(
+            thisSourceFile,
+            metadata,
+            baseTargetDir,
+            propertiesObject.getDateSource(),
+            propertiesObject.getDatePattern(),
+            propertiesObject.isKeepSourceStructure(),
+            false);
+        targetFullPath = targetFile.getAbsolutePath();
+      } catch (Exception e) {
+        log.error("Error generating date-based path for {}, falling back to standard path",
+            thisSourceFileName,
+            e);
+        // Fallback to standard logic
+        targetFullPath = propertiesObject.getTargetLocation() + File.separatorChar + targetFileName;
+        targetFile = new File(targetFullPath);
+      }
+    } else if (propertiesObject.isKeepSourceStructure() == true) {
+      sourceBasePath = thisSourceFileName.replace(propertiesObject.getSourceLocation(), "");
+      String tempPath = FilenameUtils.getPath(sourceBasePath);
+      targetFullPath = propertiesObject.getTargetLocation()
+          + File.separatorChar
+          + tempPath
+          + File.separatorChar
+          + targetFileName;
+      targetFile = new File(targetFullPath);
+    } else {
+      targetFullPath = propertiesObject.getTargetLocation() + File.separatorChar + targetFileName;
+      targetFile = new File(targetFullPath);
+    }
+
+    // Copies run in parallel, so two source files with the same name must not
+    // both be written to one target path; the first to claim it is copied. A
+    // source file modified while watching is copied again to the path it holds
+    String claimedBy = CopiedFileHashMapSingleton.getInstance().claimTarget(targetFullPath, thisSourceFileName);
+    if (claimedBy != null && !claimedBy.equals(thisSourceFileName)) {
+      log.warn("Skipping {}: target path {} is already taken by {}", thisSourceFileName, targetFullPath, claimedBy);
+      return false;
+    }
+    // Until the copy succeeds, files with the same content wait for it
+    // instead of counting as duplicates
+    if (!propertiesObject.isDryRun()) {
+      CopiedFileHashMapSingleton.getInstance().startCopy(targetFullPath);
+    }
+
+    // Claim the content, so identical source files are copied once. A file no
+    // target file can match is only hashed once another copy has its size
+    if (thisSourceChecksum == null) {
+      MessageDigest threadDigest = (MessageDigest) propertiesObject.getDigestType().clone();
+      thisSourceChecksum = TieredChecksumEngine.claimCopySize(
+          threadDigest, thisSourceFile, metadata.getSizeBytes(), targetFullPath);
+      sourceFileObject.setChecksum(thisSourceChecksum);
+    }
+    if (thisSourceChecksum != null) {
+      existingfile = TargetFileHashMapSingleton.getInstance().putIfAbsent(thisSourceChecksum, targetFullPath);
+      if (existingfile != null) {
+        CopiedFileHashMapSingleton.getInstance().endCopy(targetFullPath);
+        // The path of an earlier copy stays claimed, the copy is still there
+        if (claimedBy == null) {
+          CopiedFileHashMapSingleton.getInstance().releaseTarget(targetFullPath, thisSourceFileName);
+        }
+        recordDuplicate(sourceFileObject, existingfile, propertiesObject);
+        return false;
+      }
+      CopiedFileHashMapSingleton.getInstance().setPendingChecksum(targetFullPath, thisSourceChecksum);
+    }
+
+    if (propertiesObject.isDryRun() == true) {
+      // The file type is only detected for a message that is logged
+      if (log.isInfoEnabled()) {
+        log.info("Would Copy File [{}]: {} to {} ({})",
+            sourceFileObject.getFileTypeDesc(), thisSourceFileName, targetFullPath, metadata.getSummary());
+      }
+      return false;
+    }
+    sourceFileObject.setTargetFile(targetFile);
+    sourceFileObject.setTargetPath(targetFullPath);
+    return true;
+  }
+
+  /*************************************************
+   * Records a source file whose content is already
+   * in the target. While the content is still being
+   * copied there, the file waits for the copy.
+   *
+   * @param sourceFileObject The duplicate source file
+   * @param existingfile The target file with the same content
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static void recordDuplicate(SourceFileObject sourceFileObject, String existingfile,
+      PropertiesObject propertiesObject) throws Exception {
+    if (CopiedFileHashMapSingleton.getInstance().waitForCopy(existingfile, sourceFileObject)) {
+      log.trace("{} waits for the copy to {}", sourceFileObject.getSourceFileName(), existingfile);
+      return;
+    }
+    String thisSourceFileName = sourceFileObject.getSourceFileName();
+    String thisSourceFileNameOnly = FileUtilsLocal.getFileName(thisSourceFileName);
+    String thisTargetFileNameOnly = FileUtilsLocal.getFileName(existingfile);
+
+    if (thisSourceFileNameOnly.trim().equals(thisTargetFileNameOnly.trim())) {
+      // if this is a dryrun, add to the map, so that we can create an output file of
+      // all files
+      if (propertiesObject.isDryRun() == true) {
+        MatchingFileHashMapSingleton.getInstance().addToMap(thisSourceFileName, existingfile);
+      }
+    } else {
+      if (log.isInfoEnabled()) {
+        log.info("{} [{}] seems to be a copy of file:\r\n{}\r\nMetadata: {}",
+            thisSourceFileName, sourceFileObject.getFileTypeDesc(), existingfile,
+            sourceFileObject.getMetadata().getSummary());
+      }
+      MatchingFileHashMapSingleton.getInstance().addToMap(thisSourceFileName, existingfile);
+    }
+  }
+
+  /*************************************************
+   * Copy stage: copies a source file to the target
+   * path picked by the decide stage.
+   *
+   * @param sourceFileObject The source file and its target
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static void copySourceFile(SourceFileObject sourceFileObject, PropertiesObject propertiesObject)
+      throws Exception {
+    File thisSourceFile = sourceFileObject.getSourceFile();
+    File targetFile = sourceFileObject.getTargetFile();
+
+    // Ensure date-based folder exists before copying
+    if (propertiesObject.isOrganizeDateFolders()) {
+      DateFolderOrganizer.ensureDateFolderExists(targetFile);
+    }
+    if (log.isInfoEnabled()) {
+      log.info("Copying [{}]: {} ({})", sourceFileObject.getFileTypeDesc(), thisSourceFile.getName(),
+          sourceFileObject.getMetadata().getSummary());
+    }
+    // When the checksum of the copy is needed, it is computed while copying
+    // (or reused), so the copy never has to be read to get it
+    boolean checksumWanted = copyVerifier != null
+        || ChecksumXattrs.isEnabled()
+        || TargetIndex.getActive() != null;
+    MessageDigest threadDigest = (MessageDigest) propertiesObject.getDigestType().clone();
+    boolean targetExisted = targetFile.exists();
+    if (targetExisted) {
+      forgetReplacedTarget(sourceFileObject, propertiesObject);
+    }
+    byte[] copiedChecksum;
+    try {
+      // The copy waits for a free slot on both the source and the target device
+      copiedChecksum = IoScheduler.run(thisSourceFile.toPath(), targetFile.toPath(),
+          () -> CopyEngine.copy(thisSourceFile, targetFile,
+              checksumWanted ? threadDigest : null, sourceFileObject.getChecksum(),
+              propertiesObject.isPreserveFileDate()));
+    } catch (Exception e) {
+      log.error("Error copying " + thisSourceFile + " to " + targetFile, e);
+      abandonCopy(sourceFileObject, targetExisted, propertiesObject);
+      return;
+    }
+    CopiedFileHashMapSingleton.PendingCopy copy =
+        CopiedFileHashMapSingleton.getInstance().endCopy(sourceFileObject.getTargetPath());
+    if (copy != null) {
+      for (SourceFileObject duplicate : copy.getDuplicates()) {
+        recordDuplicate(duplicate, sourceFileObject.getTargetPath(), propertiesObject);
+      }
+    }
+
+    if (checksumWanted) {
+      // The checksum is only recorded for a copy known to be good: with
+      // verification, once the copy has been read back
+      if (copyVerifier != null) {
+        copyVerifier.submit(targetFile, copiedChecksum, threadDigest,
+            () -> recordCopiedChecksum(targetFile, copiedChecksum, threadDigest.getAlgorithm()));
+      } else {
+        recordCopiedChecksum(targetFile, copiedChecksum, threadDigest.getAlgorithm());
+      }
+    }
+  }
+
+  /*************************************************
+   * Records the checksum of a good copy in its
+   * checksum attribute and in the target index, as
+   * enabled.
+   *
+   * @param targetFile The copy
+   * @param copiedChecksum The checksum of its content
+   * @param algorithm The digest algorithm
+   *************************************************/
+  private static void recordCopiedChecksum(File targetFile, byte[] copiedChecksum, String algorithm)
+      throws IOException {
+    Path copiedPath = targetFile.getCanonicalFile().toPath();
+    if (ChecksumXattrs.isEnabled()) {
+      ChecksumXattrs.write(algorithm, copiedPath,
+          Files.readAttributes(copiedPath, BasicFileAttributes.class), copiedChecksum);
+    }
+    if (TargetIndex.getActive() != null) {
+      TargetIndex.getActive().add(copiedChecksum, copiedPath.toString());
+    }
+  }
+
+  /*************************************************
+   * Removes the checksum of a target file that is
+   * about to be replaced (an earlier copy of a
+   * modified source file, or another file with the
+   * same name) from the target checksum map, so no
+   * source file is matched against content that is
+   * gone.
+   *
+   * @param sourceFileObject The source file copied over it
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static void forgetReplacedTarget(SourceFileObject sourceFileObject, PropertiesObject propertiesObject)
+      throws Exception {
+    File targetFile = sourceFileObject.getTargetFile();
+    String targetFullPath = sourceFileObject.getTargetPath();
+    // An earlier copy not hashed yet is only in the size map
+    CopiedFileSizeMapSingleton.getInstance().releaseSize(
+        targetFile.length(), sourceFileObject.getSourceFileName(), targetFullPath);
+
+    MessageDigest threadDigest = (MessageDigest) propertiesObject.getDigestType().clone();
+    byte[] replacedChecksum;
+    try {
+      replacedChecksum = IoScheduler.run(targetFile.toPath(),
+          () -> FileUtilsLocal.getFileDigest(threadDigest, targetFile));
+    } catch (IOException e) {
+      log.warn("Cannot read {} before replacing it: {}", targetFile, e.toString());
+      return;
+    }
+    // Content equal to the new copy stays claimed by it
+    if (!Arrays.equals(replacedChecksum, sourceFileObject.getChecksum())) {
+      TargetFileHashMapSingleton.getInstance().remove(replacedChecksum, targetFullPath);
+    }
+  }
+
+  /*************************************************
+   * Undoes the claims of a failed copy: its target
+   * path, its content in the target checksum map and
+   * its size, and removes the partial copy. The files
+   * that waited for the copy are decided again, so
+   * the first of them copies the content instead.
+   *
+   * @param sourceFileObject The source file whose copy failed
+   * @param targetExisted Whether the target file existed
+   *        before the copy (it is then left in place)
+   * @param propertiesObject The run configuration
+   *************************************************/
+  private static void abandonCopy(SourceFileObject sourceFileObject, boolean targetExisted,
+      PropertiesObject propertiesObject) throws Exception {
+    String thisSourceFileName = sourceFileObject.getSourceFileName();
+    String targetFullPath = sourceFileObject.getTargetPath();
+    File targetFile = sourceFileObject.getTargetFile();
+    if (targetExisted) {
+      log.warn("{} may be incomplete after the failed copy", targetFile);
+    } else {
+      try {
+        Files.deleteIfExists(targetFile.toPath());
+      } catch (IOException e) {
+        log.warn("Cannot delete the partial copy {}: {}", targetFile, e.toString());
+      }
+    }
+
+    // A copy not hashed yet is only in the size map; releasing it there first
+    // means its checksum can no longer be added behind our back
+    CopiedFileSizeMapSingleton.getInstance().releaseSize(
+        sourceFileObject.getMetadata().getSizeBytes(), thisSourceFileName, targetFullPath);
+    CopiedFileHashMapSingleton.PendingCopy copy = CopiedFileHashMapSingleton.getInstance().endCopy(targetFullPath);
+    byte[] claimedChecksum = copy != null && copy.getChecksum() != null
+        ? copy.getChecksum()
+        : sourceFileObject.getChecksum();
+    if (claimedChecksum != null) {
+      TargetFileHashMapSingleton.getInstance().remove(claimedChecksum, targetFullPath);
+    }
+    CopiedFileHashMapSingleton.getInstance().releaseTarget(targetFullPath, thisSourceFileName);
+
+    if (copy != null) {
+      for (SourceFileObject duplicate : copy.getDuplicates()) {
+        if (decideSourceFile(duplicate, propertiesObject)) {
+          copySourceFile(duplicate, propertiesObject);
+        }
+      }
+    }
+  }
+
+  /*************************************************
+   * Runs one of the target index commands:
+   * index -t target -z type builds or updates the index,
+   * lookup -t target -z type file... checks files against it
+   * without scanning the target.
+   *
+   * @param args The command line, starting with the command
+   * @return The exit code: 0 on success (for lookup, when every file
+   *         is already in the target), 1 when a file is missing from
+   *         the target, 2 on usage errors
+   *************************************************/
+  private static int runIndexCommand(String[] args) throws Exception {
+    String command = args[0];
+    Options cliOptions = new Options();
+    cliOptions.addOption("t", "target", true, "Specifies the target location		<REQUIRED>");
+    cliOptions.addOption(
+        "z",
+        "chksumtype",
+        true,
+        "The type of checksum data to use for comparison (SHA1, MD5, XXHASH32, XXHASH64, XXH3-64, XXH3-128, XXH3-TREE)	<REQUIRED>");
+    cliOptions.addOption(
+        "cc",
+        "checksum-cache",
+        false,
+        "Cache checksums by file identity, size and mtime in ~/.sumcompare/cache");
+
+    CommandLine cmdLine = new DefaultParser().parse(cliOptions, Arrays.copyOfRange(args, 1, args.length));
+    boolean isLookup = command.equals("lookup");
+    if (!cmdLine.hasOption("t") || !cmdLine.hasOption("z") || (isLookup && cmdLine.getArgList().isEmpty())) {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("Main.jar " + command + " [options]" + (isLookup ? " <file>..." : ""), cliOptions);
+      return 2;
+    }
+
+    String targetLocation = cmdLine.getOptionValue("t");
+    MessageDigest digestType = FileUtilsLocal.SetDigestType(cmdLine.getOptionValue("z"));
+    if (cmdLine.hasOption("cc")) {
+      ChecksumCache.enable(ChecksumCache.getDefaultDirectory());
+    }
+    Path indexFile = TargetIndex.getIndexFile(targetLocation, digestType.getAlgorithm());
+
+    if (!isLookup) {
+      FileUtilsLocal.checkDirectoryExists(targetLocation);
+      FileUtilsLocal.getTargetDirectoryContentsArray(targetLocation);
+      try (TargetIndex targetIndex = TargetIndex.openForWriting(
+          indexFile, digestType.getAlgorithm(), digestType.getDigestLength())) {
+        int hashed = targetIndex.update(TargetFileArraySingleton.getInstance().getArray(), digestType);
+        log.info("Index {} holds {} checksums ({} files hashed)", indexFile, targetIndex.size(), hashed);
+      }
+      ChecksumCache.saveAll();
+      return 0;
+    }
+
+    int exitCode = 0;
+    try (TargetIndex targetIndex = TargetIndex.openForReading(
+        indexFile, digestType.getAlgorithm(), digestType.getDigestLength())) {
+      for (String file : cmdLine.getArgList()) {
+        byte[] checksum = FileUtilsLocal.getFileDigest(digestType, new File(file));
+        TargetIndex.Entry entry = targetIndex.lookup(checksum);
+        if (entry != null) {
+          System.out.println("FOUND\t" + file + "\t" + entry.getPath());
+        } else {
+          System.out.println("MISSING\t" + file);
+          exitCode = 1;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      log.error("Target {} has not been indexed with {} yet, run the index command first",
+          targetLocation, digestType.getAlgorithm());
+      return 2;
+    }
+    ChecksumCache.saveAll();
+    return exitCode;
   }
 
   /*************************************************
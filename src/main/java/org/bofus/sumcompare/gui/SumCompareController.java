@@ -17,11 +17,14 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import lombok.extern.slf4j.Slf4j;
 
-import org.bofus.sumcompare.localutil.FileTypeDetector;
+import org.bofus.sumcompare.localutil.CopyEngine;
 import org.bofus.sumcompare.localutil.FileUtilsLocal;
 import org.bofus.sumcompare.localutil.ReportUtils;
+import org.bofus.sumcompare.localutil.TieredChecksumEngine;
 import org.bofus.sumcompare.model.FileMetadata;
+import org.bofus.sumcompare.model.FileRecord;
 import org.bofus.sumcompare.model.PropertiesObject;
+import org.bofus.sumcompare.model.SourceFileObject;
 import org.bofus.sumcompare.singletons.*;
 
 import java.io.File;
@@ -29,6 +32,8 @@ import java.io.IOException;
 import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -116,11 +121,15 @@ public class SumCompareController {
     private Task<Void> currentTask;
     private Task<Void> timerTask;
     private Instant startTime;
+    // Source files as found by the walk, with their attributes, so processing
+    // does not read them again
+    private final List<FileRecord> sourceRecords = Collections.synchronizedList(new ArrayList<FileRecord>());
 
     @FXML
     public void initialize() {
         // Populate algorithm choices
-        algorithmComboBox.getItems().addAll("XXHASH64", "XXHASH32", "SHA1", "MD5");
+        algorithmComboBox.getItems().addAll("XXHASH64", "XXH3-64", "XXH3-128", "XXH3-TREE", "XXHASH32", "SHA1",
+                "MD5");
 
         // Set default algorithm
         algorithmComboBox.getSelectionModel().select("XXHASH64");
@@ -727,6 +736,9 @@ public class SumCompareController {
                         "2. Select TARGET directory (destination)\n" +
                         "3. Choose checksum algorithm:\n" +
                         "   - XXHASH64: Fastest (recommended)\n" +
+                        "   - XXH3-64: Fastest on small files\n" +
+                        "   - XXH3-128: Fast, strong collision resistance\n" +
+                        "   - XXH3-TREE: Parallel chunks, best for very large files\n" +
                         "   - XXHASH32: Fast, smaller hash\n" +
                         "   - SHA1: Cryptographically secure\n" +
                         "   - MD5: Legacy support\n\n" +
@@ -868,13 +880,6 @@ public class SumCompareController {
                                 FileUtilsLocal.getTargetDirectoryContentsArray(props.getTargetLocation());
                                 int targetCount = TargetFileArraySingleton.getInstance().getArray().size();
                                 updateMessage("Found " + targetCount + " files in target");
-
-                                // Step 3: Compute target checksums
-                                updateMessage("Computing target checksums...");
-                                FileUtilsLocal.createTargetFileChecksumMap(
-                                        TargetFileArraySingleton.getInstance(),
-                                        props.getDigestType());
-                                updateMessage("Target checksums completed");
                             } catch (Exception e) {
                                 log.error("Error scanning target directory", e);
                                 updateMessage("ERROR scanning target: " + e.getMessage());
@@ -884,7 +889,8 @@ public class SumCompareController {
 
                     Thread sourceScanThread = new Thread(() -> {
                         try {
-                            FileUtilsLocal.getSourceDirectoryContentsArray(props.getSourceLocation());
+                            FileUtilsLocal.getSourceDirectoryContentsArray(props.getSourceLocation(),
+                                    sourceRecords::add);
                             int sourceCount = SourceFileArraySingleton.getInstance().getArray().size();
                             updateMessage("Found " + sourceCount + " files in source");
                             Platform.runLater(() -> updateScannedCount(sourceCount));
@@ -910,6 +916,16 @@ public class SumCompareController {
 
                     updateMessage("Directory scanning completed");
 
+                    // Step 3: Compute target checksums for existing duplicates inside the target;
+                    // all other target files are compared lazily against the source
+                    if (!props.isSourceDuplicateCheckOnly()) {
+                        updateMessage("Computing target checksums...");
+                        FileUtilsLocal.createTargetFileChecksumMap(
+                                TargetFileArraySingleton.getInstance(),
+                                props.getDigestType());
+                        updateMessage("Target checksums completed");
+                    }
+
                     // Step 5: Process source files
                     updateMessage("Processing source files...");
                     processSourceFiles(props);
@@ -998,13 +1014,16 @@ public class SumCompareController {
     private void processSourceFiles(PropertiesObject props) throws Exception {
         int threadCount = threadCountSpinner.getValue();
         ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-        List<String> sourceFiles = SourceFileArraySingleton.getInstance().getArray();
+        List<FileRecord> sourceFiles = new ArrayList<FileRecord>(sourceRecords);
         CountDownLatch latch = new CountDownLatch(sourceFiles.size());
+        // Created here as the lazy getInstance() is not thread-safe
+        TargetFileFingerprintMapSingleton.getInstance();
 
         // Check if this is date-sort-only mode (no duplicate checking)
         boolean dateSortOnlyMode = props.isSourceDuplicateCheckOnly() && props.isOrganizeDateFolders();
 
-        for (String sourceFile : sourceFiles) {
+        for (FileRecord sourceRecord : sourceFiles) {
+            String sourceFile = sourceRecord.getPath();
             executor.submit(() -> {
                 try {
                     if (currentTask.isCancelled()) {
@@ -1013,11 +1032,14 @@ public class SumCompareController {
 
                     File thisSourceFile = new File(sourceFile);
 
-                    // Capture file metadata
-                    FileMetadata metadata = FileMetadata.fromFile(thisSourceFile);
+                    // File metadata as captured by the walk
+                    FileMetadata metadata = FileMetadata.fromRecord(sourceRecord);
 
-                    // Detect file type
-                    String fileTypeDesc = FileTypeDetector.getFileTypeDescription(thisSourceFile);
+                    // The file type is detected on first use, only for files that are logged
+                    SourceFileObject sourceFileObject = new SourceFileObject();
+                    sourceFileObject.setSourceFileName(sourceFile);
+                    sourceFileObject.setSourceFile(thisSourceFile);
+                    sourceFileObject.setMetadata(metadata);
 
                     // In date-sort-only mode, skip duplicate checking and just organize files
                     if (dateSortOnlyMode) {
@@ -1029,7 +1051,7 @@ public class SumCompareController {
                             String fileName = thisSourceFile.getName();
                             String action = props.isMoveInsteadOfCopy() ? "move and organize" : "organize";
                             String logMsg = String.format("Would %s [%s]: %s (%s)",
-                                    action, fileTypeDesc, fileName, metadata.getSummary());
+                                    action, sourceFileObject.getFileTypeDesc(), fileName, metadata.getSummary());
                             Platform.runLater(() -> appendLog(logMsg));
                         } else {
                             File targetFile = new File(targetPath);
@@ -1039,40 +1061,45 @@ public class SumCompareController {
 
                             if (props.isMoveInsteadOfCopy()) {
                                 // Move file: copy then delete/trash source
-                                org.apache.commons.io.FileUtils.copyFile(thisSourceFile, targetFile,
+                                CopyEngine.copy(thisSourceFile, targetFile,
                                         props.isPreserveFileDate());
                                 if (deleteOrTrashFile(thisSourceFile, props.isPermanentlyDelete())) {
                                     String fileName = thisSourceFile.getName();
                                     String action = props.isPermanentlyDelete() ? "Moved (deleted)"
                                             : "Moved (to trash)";
                                     String logMsg = String.format("%s [%s]: %s (%s)",
-                                            action, fileTypeDesc, fileName, metadata.getSummary());
+                                            action, sourceFileObject.getFileTypeDesc(), fileName,
+                                            metadata.getSummary());
                                     Platform.runLater(() -> appendLog(logMsg));
                                 } else {
                                     String fileName = thisSourceFile.getName();
                                     String logMsg = String.format("Copied but failed to delete source [%s]: %s (%s)",
-                                            fileTypeDesc, fileName, metadata.getSummary());
+                                            sourceFileObject.getFileTypeDesc(), fileName, metadata.getSummary());
                                     Platform.runLater(() -> appendLog(logMsg));
                                 }
                             } else {
                                 // Normal copy
-                                org.apache.commons.io.FileUtils.copyFile(thisSourceFile, targetFile,
+                                CopyEngine.copy(thisSourceFile, targetFile,
                                         props.isPreserveFileDate());
                                 String fileName = thisSourceFile.getName();
                                 String logMsg = String.format("Organized [%s]: %s (%s)",
-                                        fileTypeDesc, fileName, metadata.getSummary());
+                                        sourceFileObject.getFileTypeDesc(), fileName, metadata.getSummary());
                                 Platform.runLater(() -> appendLog(logMsg));
                             }
                         }
 
                         updateCopiedCount(CopiedFileHashMapSingleton.getInstance().getMap().size());
                     } else {
-                        // Normal mode: check for duplicates
+                        // Normal mode: check for duplicates. Compare by size, then by head/tail
+                        // fingerprint, and only compute the full checksum when both collide with a
+                        // target file (null means no candidate)
                         MessageDigest threadDigest = (MessageDigest) props.getDigestType().clone();
-                        String checksum = FileUtilsLocal.getFileChecksum(threadDigest, thisSourceFile);
+                        byte[] checksum = TieredChecksumEngine.getCandidateDigest(
+                                threadDigest, thisSourceFile, metadata.getSizeBytes());
 
-                        if (TargetFileHashMapSingleton.getInstance().getMap().containsKey(checksum)) {
-                            String existingFile = TargetFileHashMapSingleton.getInstance().getMap().get(checksum);
+                        if (checksum != null
+                                && TargetFileHashMapSingleton.getInstance().containsChecksum(checksum)) {
+                            String existingFile = TargetFileHashMapSingleton.getInstance().getPath(checksum);
                             String sourceFileName = FileUtilsLocal.getFileName(sourceFile);
                             String targetFileName = FileUtilsLocal.getFileName(existingFile);
 
@@ -1086,17 +1113,20 @@ public class SumCompareController {
 
                                 if (props.isDryRun()) {
                                     String logMsg = String.format("Would rename duplicate [%s]: %s -> %s (%s)",
-                                            fileTypeDesc, sourceFileName, newFileName, metadata.getSummary());
+                                            sourceFileObject.getFileTypeDesc(), sourceFileName, newFileName,
+                                            metadata.getSummary());
                                     Platform.runLater(() -> appendLog(logMsg));
                                 } else {
                                     // Actually rename the file
                                     if (sourceFileObj.renameTo(renamedFile)) {
                                         String logMsg = String.format("Renamed duplicate [%s]: %s -> %s (%s)",
-                                                fileTypeDesc, sourceFileName, newFileName, metadata.getSummary());
+                                                sourceFileObject.getFileTypeDesc(), sourceFileName, newFileName,
+                                                metadata.getSummary());
                                         Platform.runLater(() -> appendLog(logMsg));
                                     } else {
                                         String logMsg = String.format("Failed to rename [%s]: %s (%s)",
-                                                fileTypeDesc, sourceFileName, metadata.getSummary());
+                                                sourceFileObject.getFileTypeDesc(), sourceFileName,
+                                                metadata.getSummary());
                                         Platform.runLater(() -> appendLog(logMsg));
                                     }
                                 }
@@ -1107,7 +1137,8 @@ public class SumCompareController {
                                     MatchingFileHashMapSingleton.getInstance().addToMap(sourceFile, existingFile);
                                 } else {
                                     String logMsg = String.format("Duplicate [%s]: %s -> %s (%s)",
-                                            fileTypeDesc, sourceFileName, existingFile, metadata.getSummary());
+                                            sourceFileObject.getFileTypeDesc(), sourceFileName, existingFile,
+                                            metadata.getSummary());
                                     Platform.runLater(() -> appendLog(logMsg));
                                     MatchingFileHashMapSingleton.getInstance().addToMap(sourceFile, existingFile);
                                 }
@@ -1121,7 +1152,7 @@ public class SumCompareController {
                                 String fileName = thisSourceFile.getName();
                                 String action = props.isMoveInsteadOfCopy() ? "move" : "copy";
                                 String logMsg = String.format("Would %s [%s]: %s (%s)",
-                                        action, fileTypeDesc, fileName, metadata.getSummary());
+                                        action, sourceFileObject.getFileTypeDesc(), fileName, metadata.getSummary());
                                 Platform.runLater(() -> appendLog(logMsg));
                             } else {
                                 File targetFile = new File(targetPath);
@@ -1134,29 +1165,31 @@ public class SumCompareController {
 
                                 if (props.isMoveInsteadOfCopy()) {
                                     // Move file: copy then delete source
-                                    org.apache.commons.io.FileUtils.copyFile(thisSourceFile, targetFile,
+                                    CopyEngine.copy(thisSourceFile, targetFile,
                                             props.isPreserveFileDate());
                                     if (deleteOrTrashFile(thisSourceFile, props.isPermanentlyDelete())) {
                                         String fileName = thisSourceFile.getName();
                                         String action = props.isPermanentlyDelete() ? "deleted" : "to trash";
                                         String logMsg = String.format("Moved (%s) [%s]: %s (%s)",
-                                                action, fileTypeDesc, fileName, metadata.getSummary());
+                                                action, sourceFileObject.getFileTypeDesc(), fileName,
+                                                metadata.getSummary());
                                         Platform.runLater(() -> appendLog(logMsg));
                                     } else {
                                         String fileName = thisSourceFile.getName();
                                         String action = props.isPermanentlyDelete() ? "delete" : "trash";
                                         String logMsg = String.format(
                                                 "Copied but failed to %s source [%s]: %s (%s)",
-                                                action, fileTypeDesc, fileName, metadata.getSummary());
+                                                action, sourceFileObject.getFileTypeDesc(), fileName,
+                                                metadata.getSummary());
                                         Platform.runLater(() -> appendLog(logMsg));
                                     }
                                 } else {
                                     // Normal copy
-                                    org.apache.commons.io.FileUtils.copyFile(thisSourceFile, targetFile,
+                                    CopyEngine.copy(thisSourceFile, targetFile,
                                             props.isPreserveFileDate());
                                     String fileName = thisSourceFile.getName();
                                     String logMsg = String.format("Copied [%s]: %s (%s)",
-                                            fileTypeDesc, fileName, metadata.getSummary());
+                                            sourceFileObject.getFileTypeDesc(), fileName, metadata.getSummary());
                                     Platform.runLater(() -> appendLog(logMsg));
                                 }
                             }
@@ -1428,10 +1461,14 @@ public class SumCompareController {
 
     private void clearSingletons() {
         try {
+            sourceRecords.clear();
             SourceFileArraySingleton.getInstance().getArray().clear();
             TargetFileArraySingleton.getInstance().getArray().clear();
-            SourceFileHashMapSingleton.getInstance().getMap().clear();
-            TargetFileHashMapSingleton.getInstance().getMap().clear();
+            SourceFileHashMapSingleton.getInstance().clear();
+            TargetFileHashMapSingleton.getInstance().clear();
+            SourceFileSizeMapSingleton.getInstance().getMap().clear();
+            TargetFileSizeMapSingleton.getInstance().getMap().clear();
+            TargetFileFingerprintMapSingleton.getInstance().clear();
             CopiedFileHashMapSingleton.getInstance().getMap().clear();
             MatchingFileHashMapSingleton.getInstance().getMap().clear();
             ExistingTargetFileObjectArraySingleton.getInstance().getArray().clear();
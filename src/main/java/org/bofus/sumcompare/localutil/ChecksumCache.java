@@ -0,0 +1,391 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent cache of file checksums, one file per algorithm under
+ * {@code ~/.sumcompare/cache/}.
+ * <p>
+ * Entries are keyed by the file identity from
+ * {@link BasicFileAttributes#fileKey()} (device and inode on Unix) and are only
+ * served while the file's size and last modified time are unchanged, so an
+ * unchanged file is never read again. A file that was modified simply replaces
+ * its entry. Each cache keeps its entries in flat primitive arrays indexed by
+ * a {@link LongIntHashMap}, so millions of entries stay compact. The entries
+ * are split into stripes that are locked separately, so hashing threads
+ * rarely wait for each other.
+ * <p>
+ * Every run of the program is a new generation of the cache. Entries that
+ * were not looked up or stored during the last {@link #MAX_UNUSED_RUNS} runs
+ * (deleted or replaced files, or files no longer compared) are dropped when
+ * the cache is saved, so it does not grow without bound.
+ */
+@Slf4j
+public class ChecksumCache {
+
+    /** Namespace used for the tiered engine's head/tail fingerprints */
+    public static final String FINGERPRINT = "FINGERPRINT";
+
+    /** Runs after which an entry that was not used is dropped */
+    public static final int MAX_UNUSED_RUNS = 10;
+
+    private static final int MAGIC_V1 = 0x53434331; // "SCC1", without generations
+    private static final int MAGIC = 0x53434332; // "SCC2"
+    // Number of independently locked parts of a cache (a power of two)
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final Map<String, ChecksumCache> CACHES = new ConcurrentHashMap<String, ChecksumCache>();
+    private static volatile Path cacheDirectory;
+
+    private final String algorithm;
+    private final Path cacheFile;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile int digestLength = -1;
+    // This run's generation; entries remember the last one they were used in
+    private int generation;
+    private volatile boolean dirty;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // One part of a cache, guarded by its own monitor
+    private class Stripe {
+        private LongIntHashMap index = new LongIntHashMap(INITIAL_CAPACITY);
+        private long[] devices = new long[INITIAL_CAPACITY];
+        private long[] inodes = new long[INITIAL_CAPACITY];
+        private long[] sizes = new long[INITIAL_CAPACITY];
+        private long[] modifiedTimes = new long[INITIAL_CAPACITY];
+        private int[] lastUsed = new int[INITIAL_CAPACITY];
+        private byte[] digests = new byte[0];
+        private int count;
+
+        private synchronized byte[] get(long key, long[] identity, BasicFileAttributes attrs) {
+            int entry = index.get(key);
+            if (entry == LongIntHashMap.NO_VALUE
+                    || devices[entry] != identity[0]
+                    || inodes[entry] != identity[1]
+                    || sizes[entry] != attrs.size()
+                    || modifiedTimes[entry] != attrs.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            if (lastUsed[entry] != generation) {
+                lastUsed[entry] = generation;
+                dirty = true;
+            }
+            return Arrays.copyOfRange(digests, entry * digestLength, (entry + 1) * digestLength);
+        }
+
+        private synchronized void put(long key, long device, long inode, long size, long modifiedTime,
+                int used, byte[] value) {
+            int entry = index.get(key);
+            if (entry == LongIntHashMap.NO_VALUE) {
+                entry = count++;
+                ensureCapacity(count);
+                index.put(key, entry);
+            }
+            devices[entry] = device;
+            inodes[entry] = inode;
+            sizes[entry] = size;
+            modifiedTimes[entry] = modifiedTime;
+            lastUsed[entry] = used;
+            System.arraycopy(value, 0, digests, entry * digestLength, digestLength);
+        }
+
+        // Drops the entries unused for too long and writes the others
+        private synchronized void evictAndWrite(DataOutputStream out) throws IOException {
+            int kept = 0;
+            for (int entry = 0; entry < count; entry++) {
+                if (generation - lastUsed[entry] < MAX_UNUSED_RUNS) {
+                    move(entry, kept++);
+                }
+            }
+            if (kept < count) {
+                count = kept;
+                index = new LongIntHashMap(Math.max(count, INITIAL_CAPACITY));
+                for (int entry = 0; entry < count; entry++) {
+                    index.put(mix(devices[entry], inodes[entry]), entry);
+                }
+            }
+
+            out.writeInt(count);
+            for (int entry = 0; entry < count; entry++) {
+                out.writeLong(devices[entry]);
+                out.writeLong(inodes[entry]);
+                out.writeLong(sizes[entry]);
+                out.writeLong(modifiedTimes[entry]);
+                out.writeInt(lastUsed[entry]);
+                out.write(digests, entry * digestLength, digestLength);
+            }
+        }
+
+        private synchronized int size() {
+            return count;
+        }
+
+        private void move(int from, int to) {
+            if (from != to) {
+                devices[to] = devices[from];
+                inodes[to] = inodes[from];
+                sizes[to] = sizes[from];
+                modifiedTimes[to] = modifiedTimes[from];
+                lastUsed[to] = lastUsed[from];
+                System.arraycopy(digests, from * digestLength, digests, to * digestLength, digestLength);
+            }
+        }
+
+        private void ensureCapacity(int entries) {
+            if (entries > devices.length) {
+                int capacity = Math.max(entries, devices.length * 2);
+                devices = Arrays.copyOf(devices, capacity);
+                inodes = Arrays.copyOf(inodes, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                modifiedTimes = Arrays.copyOf(modifiedTimes, capacity);
+                lastUsed = Arrays.copyOf(lastUsed, capacity);
+            }
+            if ((long) entries * digestLength > digests.length) {
+                digests = Arrays.copyOf(digests, devices.length * digestLength);
+            }
+        }
+    }
+
+    private ChecksumCache(String algorithm, Path cacheFile) {
+        this.algorithm = algorithm;
+        this.cacheFile = cacheFile;
+        clear();
+    }
+
+    /**
+     * Enables caching, with cache files stored in the given directory.
+     */
+    public static void enable(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        cacheDirectory = directory;
+        log.info("Checksum cache enabled: {}", directory);
+    }
+
+    /**
+     * The default cache location, {@code ~/.sumcompare/cache}.
+     */
+    public static Path getDefaultDirectory() {
+        return new File(System.getProperty("user.home"), ".sumcompare" + File.separator + "cache").toPath();
+    }
+
+    public static boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+
+    /**
+     * Returns the cached value for a file, or null if caching is disabled, the
+     * file is not cached or it changed since it was cached.
+     *
+     * @param namespace The algorithm name (or {@link #FINGERPRINT})
+     * @param attrs     The file's current attributes
+     */
+    public static byte[] lookup(String namespace, Path file, BasicFileAttributes attrs) {
+        ChecksumCache cache = forNamespace(namespace);
+        return cache == null ? null : cache.get(file, attrs);
+    }
+
+    /**
+     * Records the value for a file. Does nothing if caching is disabled.
+     */
+    public static void store(String namespace, Path file, BasicFileAttributes attrs, byte[] value) {
+        ChecksumCache cache = forNamespace(namespace);
+        if (cache != null) {
+            cache.put(file, attrs, value);
+        }
+    }
+
+    /**
+     * Writes every modified cache back to disk.
+     */
+    public static void saveAll() {
+        for (ChecksumCache cache : CACHES.values()) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                log.error("Could not save checksum cache " + cache.cacheFile, e);
+            }
+        }
+    }
+
+    private static ChecksumCache forNamespace(String namespace) {
+        Path directory = cacheDirectory;
+        if (directory == null) {
+            return null;
+        }
+        return CACHES.computeIfAbsent(namespace, name -> {
+            ChecksumCache cache = new ChecksumCache(name, directory.resolve(name + ".cache"));
+            try {
+                cache.load();
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable checksum cache {}: {}", cache.cacheFile, e.getMessage());
+                cache.clear();
+            }
+            return cache;
+        });
+    }
+
+    private byte[] get(Path file, BasicFileAttributes attrs) {
+        if (digestLength == -1) {
+            misses.increment();
+            return null;
+        }
+        long[] identity = identity(file, attrs);
+        long key = mix(identity[0], identity[1]);
+        byte[] value = stripeFor(key).get(key, identity, attrs);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    private void put(Path file, BasicFileAttributes attrs, byte[] value) {
+        if (digestLength == -1) {
+            synchronized (this) {
+                if (digestLength == -1) {
+                    digestLength = value.length;
+                }
+            }
+        }
+        if (digestLength != value.length) {
+            log.warn("Not caching {} value of unexpected length {}", algorithm, value.length);
+            return;
+        }
+
+        long[] identity = identity(file, attrs);
+        long key = mix(identity[0], identity[1]);
+        stripeFor(key).put(key, identity[0], identity[1], attrs.size(), attrs.lastModifiedTime().toMillis(),
+                generation, value);
+        dirty = true;
+    }
+
+    private synchronized void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(cacheFile), 1 << 16))) {
+            int magic = in.readInt();
+            if ((magic != MAGIC && magic != MAGIC_V1) || !in.readUTF().equals(algorithm)) {
+                throw new IOException("not a " + algorithm + " checksum cache");
+            }
+            digestLength = in.readInt();
+            // A cache without generations counts as used by the previous run
+            generation = magic == MAGIC ? in.readInt() + 1 : 1;
+            int blocks = magic == MAGIC ? in.readInt() : 1;
+            byte[] value = new byte[digestLength];
+            long entries = 0;
+            for (int block = 0; block < blocks; block++) {
+                int count = in.readInt();
+                for (int entry = 0; entry < count; entry++) {
+                    long device = in.readLong();
+                    long inode = in.readLong();
+                    long size = in.readLong();
+                    long modifiedTime = in.readLong();
+                    int used = magic == MAGIC ? in.readInt() : generation - 1;
+                    in.readFully(value);
+                    long key = mix(device, inode);
+                    stripeFor(key).put(key, device, inode, size, modifiedTime, used, value);
+                }
+                entries += count;
+            }
+            log.debug("Loaded {} entries from checksum cache {}", entries, cacheFile);
+        } catch (NoSuchFileException e) {
+            // First run for this algorithm
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        log.debug("Checksum cache {}: {} hits, {} misses", algorithm, hits.sum(), misses.sum());
+        if (!dirty) {
+            return;
+        }
+        // Cleared first, so changes made while saving are saved next time
+        dirty = false;
+
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(algorithm);
+            out.writeInt(digestLength);
+            out.writeInt(generation);
+            out.writeInt(STRIPES);
+            for (Stripe stripe : stripes) {
+                stripe.evictAndWrite(out);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            count += stripe.size();
+        }
+        log.info("Saved {} entries to checksum cache {}", count, cacheFile);
+    }
+
+    private synchronized void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        digestLength = -1;
+        generation = 0;
+    }
+
+    // The top bits select the stripe; the stripe's index hashes the whole key
+    private Stripe stripeFor(long key) {
+        return stripes[(int) (key >>> 60) & (STRIPES - 1)];
+    }
+
+    /**
+     * Device and inode of a file, parsed from the Unix file key
+     * {@code (dev=XXX,ino=NNN)}. Where no such key exists the canonical path is
+     * hashed instead, with an inode of -1.
+     */
+    private static long[] identity(Path file, BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        if (fileKey != null) {
+            String key = fileKey.toString();
+            int dev = key.indexOf("dev=");
+            int ino = key.indexOf(",ino=");
+            if (dev >= 0 && ino > dev) {
+                try {
+                    long device = Long.parseLong(key.substring(dev + 4, ino), 16);
+                    long inode = Long.parseLong(key.substring(ino + 5, key.length() - 1));
+                    return new long[] { device, inode };
+                } catch (NumberFormatException e) {
+                    // fall through to the path based identity
+                }
+            }
+        }
+        String path = file.toAbsolutePath().normalize().toString();
+        long hash = 1125899906842597L;
+        for (int i = 0; i < path.length(); i++) {
+            hash = 31 * hash + path.charAt(i);
+        }
+        return new long[] { hash, -1 };
+    }
+
+    private static long mix(long device, long inode) {
+        long hash = device * 0x9E3779B97F4A7C15L + inode;
+        return hash ^ (hash >>> 29);
+    }
+}
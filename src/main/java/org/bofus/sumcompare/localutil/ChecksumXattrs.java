@@ -0,0 +1,116 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Stores checksums in user extended attributes ({@code user.sumcompare.<algo>})
+ * of target files.
+ * <p>
+ * The attribute holds the size and last modified time the checksum was
+ * computed for, followed by the checksum, and is only trusted while both
+ * still match. Because the attribute travels with the file, a target that is
+ * reorganized between runs (files renamed or moved within the same file
+ * system) does not have to be hashed again. Attributes are read from any file
+ * but only written below the target directory.
+ */
+@Slf4j
+public class ChecksumXattrs {
+
+    private static final String ATTRIBUTE_PREFIX = "sumcompare.";
+    private static final int HEADER_LENGTH = 2 * Long.BYTES;
+
+    private static volatile String targetRoot;
+    private static volatile boolean writeFailureLogged;
+
+    /**
+     * Enables checksum attributes, written for files below the given target
+     * directory.
+     */
+    public static void enable(String targetLocation) throws IOException {
+        targetRoot = new File(targetLocation).getCanonicalPath() + File.separator;
+        log.info("Checksum extended attributes enabled for target: {}", targetLocation);
+    }
+
+    public static boolean isEnabled() {
+        return targetRoot != null;
+    }
+
+    /**
+     * Returns the checksum stored in the file's attribute, or null if
+     * attributes are disabled, absent or stale.
+     *
+     * @param attrs The file's current attributes
+     */
+    public static byte[] read(String algorithm, Path file, BasicFileAttributes attrs) {
+        if (targetRoot == null) {
+            return null;
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return null;
+        }
+
+        try {
+            String name = ATTRIBUTE_PREFIX + algorithm;
+            int length = view.size(name);
+            if (length <= HEADER_LENGTH) {
+                return null;
+            }
+            ByteBuffer value = ByteBuffer.allocate(length);
+            view.read(name, value);
+            value.flip();
+            if (value.getLong() != attrs.size() || value.getLong() != attrs.lastModifiedTime().toMillis()) {
+                log.trace("Stale {} attribute on {}", algorithm, file);
+                return null;
+            }
+            byte[] checksum = new byte[value.remaining()];
+            value.get(checksum);
+            return checksum;
+        } catch (IOException e) {
+            // No such attribute (or none supported on this file system)
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checksum attribute, if the file is below the target directory.
+     * Failures (e.g. file systems without user attributes) are logged once and
+     * otherwise ignored.
+     *
+     * @param attrs The attributes the checksum was computed for, read before
+     *              hashing
+     */
+    public static void write(String algorithm, Path file, BasicFileAttributes attrs, byte[] checksum) {
+        String root = targetRoot;
+        if (root == null || !file.toAbsolutePath().toString().startsWith(root)) {
+            return;
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+
+        ByteBuffer value = ByteBuffer.allocate(HEADER_LENGTH + checksum.length);
+        value.putLong(attrs.size());
+        value.putLong(attrs.lastModifiedTime().toMillis());
+        value.put(checksum);
+        value.flip();
+        try {
+            view.write(ATTRIBUTE_PREFIX + algorithm, value);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (!writeFailureLogged) {
+                writeFailureLogged = true;
+                log.warn("Could not write checksum attribute to {} (further failures are not logged): {}", file,
+                        e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pluggable file copy engine.
+ * <p>
+ * Depending on the {@link CopyMethod}, files are cloned (reflink), copied in
+ * the kernel, or copied through user space while being hashed. In
+ * {@link CopyMethod#AUTO} mode a copy within one file system is first tried as
+ * a reflink, which shares the source's extents on btrfs and XFS and costs
+ * almost nothing. Otherwise a copy whose checksum is still needed is streamed
+ * through the digest, so hashing and copying share a single read of the
+ * source, and any other copy is left to the kernel.
+ */
+@Slf4j
+public class CopyEngine {
+
+    /**
+     * How file content is copied.
+     */
+    public enum CopyMethod {
+        /** Reflink within a file system, else hash-while-copy or kernel copy */
+        AUTO,
+
+        /** Reflink ({@code FICLONE}) clone, falling back to KERNEL */
+        REFLINK,
+
+        /** Files.copy, done by the kernel ({@code copy_file_range}) on Linux */
+        KERNEL,
+
+        /** FileChannel.transferTo */
+        TRANSFER,
+
+        /** Through a user space buffer, hashing the content while copying */
+        STREAM
+    }
+
+    // 1 MB direct buffer per copying thread (or per copy in flight, on virtual
+    // threads), reused for every file
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+    private static final DirectBufferPool COPY_BUFFERS = new DirectBufferPool(COPY_BUFFER_SIZE);
+
+    // Below this size starting cp costs more than a kernel copy
+    private static final long REFLINK_MIN_SIZE = 1L << 20;
+    private static final boolean IS_LINUX = System.getProperty("os.name").toLowerCase().contains("linux");
+
+    // File stores on which a reflink failed, so cp is not started again for them
+    private static final Map<FileStore, Boolean> REFLINK_UNSUPPORTED = new ConcurrentHashMap<FileStore, Boolean>();
+    // File store of each directory a file was copied from or to, so a copy
+    // does not stat the mount table again
+    private static final Map<Path, FileStore> DIRECTORY_STORES = new ConcurrentHashMap<Path, FileStore>();
+
+    private static volatile CopyMethod copyMethod = CopyMethod.AUTO;
+
+    public static CopyMethod getCopyMethod() {
+        return copyMethod;
+    }
+
+    public static void setCopyMethod(CopyMethod method) {
+        copyMethod = method;
+    }
+
+    /**
+     * Copies a file whose checksum is not needed.
+     */
+    public static void copy(File source, File target, boolean preserveFileDate) throws IOException {
+        copy(source, target, null, null, preserveFileDate);
+    }
+
+    /**
+     * Copies a file with the configured {@link CopyMethod}, creating missing
+     * parent directories.
+     *
+     * @param source           The file to copy
+     * @param target           The destination, replaced if it exists
+     * @param digest           The digest to compute the checksum with (not
+     *                         shared with other threads), or null if no
+     *                         checksum is needed
+     * @param knownChecksum    The checksum of the source if already computed,
+     *                         or null
+     * @param preserveFileDate Whether to give the copy the source's mtime
+     * @return The checksum of the copied content, or null if neither a digest
+     *         nor a known checksum was given
+     * @throws IOException if the copy fails or is incomplete
+     */
+    public static byte[] copy(File source, File target, MessageDigest digest, byte[] knownChecksum,
+            boolean preserveFileDate) throws IOException {
+        Path sourcePath = source.toPath();
+        Path targetPath = target.toPath();
+        if (target.getParentFile() != null) {
+            Files.createDirectories(target.getParentFile().toPath());
+        }
+
+        CopyMethod method = copyMethod;
+        boolean hashWanted = digest != null && knownChecksum == null;
+        byte[] checksum = knownChecksum;
+
+        boolean copied = false;
+        if (method == CopyMethod.REFLINK
+                || (method == CopyMethod.AUTO && source.length() >= REFLINK_MIN_SIZE
+                        && isSameFileStore(sourcePath, targetPath))) {
+            copied = reflink(sourcePath, targetPath);
+        }
+
+        if (!copied) {
+            if (method == CopyMethod.STREAM || (method == CopyMethod.AUTO && hashWanted)) {
+                byte[] streamed = copyStream(sourcePath, targetPath, hashWanted ? digest : null);
+                if (hashWanted) {
+                    checksum = streamed;
+                    hashWanted = false;
+                }
+            } else if (method == CopyMethod.TRANSFER) {
+                copyTransfer(sourcePath, targetPath);
+            } else {
+                copyKernel(sourcePath, targetPath);
+            }
+        }
+
+        long expected = Files.size(sourcePath);
+        long actual = Files.size(targetPath);
+        if (actual != expected) {
+            throw new IOException(String.format("Failed to copy full contents from '%s' to '%s' (%d of %d bytes)",
+                    source, target, actual, expected));
+        }
+        if (preserveFileDate) {
+            Files.setLastModifiedTime(targetPath, Files.getLastModifiedTime(sourcePath));
+        }
+
+        // Reflink and kernel copies never pass through the digest
+        if (hashWanted) {
+            checksum = FileUtilsLocal.getFileDigest(digest, source);
+        }
+        return checksum;
+    }
+
+    /**
+     * Copies through a user space buffer, feeding every buffer read from the
+     * source to the digest (if any) before it is written to the target.
+     */
+    private static byte[] copyStream(Path source, Path target, MessageDigest digest) throws IOException {
+        if (digest != null) {
+            digest.reset();
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = COPY_BUFFERS.acquire();
+            try {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    if (digest != null) {
+                        TaskExecutors.update(digest, buffer.duplicate());
+                    }
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                COPY_BUFFERS.release(buffer);
+            }
+        }
+        return digest != null ? digest.digest() : null;
+    }
+
+    private static void copyKernel(Path source, Path target) throws IOException {
+        try {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (UnsupportedOperationException e) {
+            log.debug("Files.copy not supported for {}, using transferTo", source);
+            copyTransfer(source, target);
+        }
+    }
+
+    private static void copyTransfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Clones a file with {@code cp --reflink=always}, which issues the
+     * {@code FICLONE} ioctl. The JDK has no reflink API, and calling the ioctl
+     * directly would need the Java 21 preview FFM API.
+     *
+     * @return true if the clone was made
+     */
+    static boolean reflink(Path source, Path target) {
+        if (!IS_LINUX) {
+            return false;
+        }
+        FileStore store;
+        try {
+            store = fileStore(source);
+        } catch (IOException e) {
+            return false;
+        }
+        if (REFLINK_UNSUPPORTED.containsKey(store)) {
+            return false;
+        }
+
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", "-f", "--",
+                    source.toString(), target.toString()).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (process.waitFor() == 0) {
+                log.trace("Reflinked {} to {}", source, target);
+                return true;
+            }
+            // Other failures (a full disk, a permission) say nothing of the file
+            // system, so only these stop reflinks on it
+            String reason = output.toLowerCase();
+            if (reason.contains("operation not supported") || reason.contains("invalid cross-device link")) {
+                REFLINK_UNSUPPORTED.put(store, Boolean.TRUE);
+                log.info("Reflink copies are not available on {} ({}), copying instead", store, output);
+            } else {
+                log.debug("Reflink of {} failed ({}), copying instead", source, output);
+            }
+        } catch (IOException e) {
+            REFLINK_UNSUPPORTED.put(store, Boolean.TRUE);
+            log.info("Reflink copies are not available: {}", e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return true if both files are in the same file store; the target need
+     *         not exist yet, but its directory must
+     */
+    static boolean isSameFileStore(Path source, Path target) {
+        try {
+            return fileStore(source).equals(fileStore(target));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The file store of a file, looked up once per directory.
+     */
+    static FileStore fileStore(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null) {
+            return Files.getFileStore(file);
+        }
+        FileStore store = DIRECTORY_STORES.get(directory);
+        if (store == null) {
+            store = Files.getFileStore(directory);
+            DIRECTORY_STORES.putIfAbsent(directory, store);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,213 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Post-copy verification stage: re-reads written copies on its own threads and
+ * compares their checksum with the checksum of the source taken while copying.
+ * <p>
+ * The readback uses direct I/O ({@code O_DIRECT}), which flushes the copy's
+ * dirty pages and then reads from the device, so the page cache cannot hand
+ * back the bytes that were just written instead of what reached the disk.
+ * File systems that refuse direct I/O (e.g. tmpfs) fall back to a regular read
+ * after {@code fsync}, which is logged once, as do JDKs without the
+ * {@code DIRECT} open option.
+ */
+@Slf4j
+public class CopyVerifier {
+
+    private static final int VERIFY_BUFFER_SIZE = 1 << 20;
+    // Direct I/O needs buffers aligned to the logical block size
+    private static final int ALIGNMENT = 4096;
+    private static final DirectBufferPool VERIFY_BUFFERS = new DirectBufferPool(
+            () -> ByteBuffer.allocateDirect(VERIFY_BUFFER_SIZE + ALIGNMENT).alignedSlice(ALIGNMENT));
+
+    // com.sun.nio.file.ExtendedOpenOption.DIRECT, looked up reflectively so
+    // the build does not depend on an internal JDK API; null if not available
+    private static final OpenOption DIRECT = directOpenOption();
+
+    private static volatile boolean directFallbackLogged;
+
+    /**
+     * Work that may only be done once a copy is known to be good, such as
+     * recording its checksum.
+     */
+    @FunctionalInterface
+    public interface VerifiedAction {
+        void run() throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final Queue<Future<?>> pending = new ConcurrentLinkedQueue<Future<?>>();
+    private final AtomicInteger verifiedCount = new AtomicInteger();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @param threadCount Number of verification threads
+     */
+    public CopyVerifier(int threadCount) {
+        this.executor = TaskExecutors.newIoExecutor(threadCount);
+    }
+
+    /**
+     * Queues a copy for verification and returns immediately.
+     *
+     * @param target   The written copy
+     * @param expected The checksum of the source content
+     * @param digest   A digest of the same type (cloned, never used directly)
+     */
+    public void submit(File target, byte[] expected, MessageDigest digest) throws CloneNotSupportedException {
+        submit(target, expected, digest, null);
+    }
+
+    /**
+     * Queues a copy for verification and returns immediately.
+     *
+     * @param target     The written copy
+     * @param expected   The checksum of the source content
+     * @param digest     A digest of the same type (cloned, never used directly)
+     * @param onVerified Run on the verification thread if the copy matches,
+     *                   or null
+     */
+    public void submit(File target, byte[] expected, MessageDigest digest, VerifiedAction onVerified)
+            throws CloneNotSupportedException {
+        MessageDigest verifyDigest = (MessageDigest) digest.clone();
+        pending.add(executor.submit(() -> {
+            try {
+                byte[] actual = IoScheduler.run(target.toPath(),
+                        () -> readbackDigest(target.toPath(), verifyDigest));
+                if (MessageDigest.isEqual(expected, actual)) {
+                    verifiedCount.incrementAndGet();
+                    log.debug("Verified copy {}", target);
+                    if (onVerified != null) {
+                        try {
+                            onVerified.run();
+                        } catch (Exception e) {
+                            log.error("Error after verifying " + target, e);
+                        }
+                    }
+                } else {
+                    failures.add(target.getPath());
+                    log.error("Verification FAILED for {}: expected {} but read back {}", target,
+                            FileUtilsLocal.toHex(expected), FileUtilsLocal.toHex(actual));
+                }
+            } catch (Exception e) {
+                failures.add(target.getPath());
+                log.error("Verification FAILED for " + target + ", copy could not be read back", e);
+            }
+        }));
+    }
+
+    /**
+     * Waits until every copy queued so far has been verified.
+     */
+    public void awaitPending() throws InterruptedException {
+        Future<?> future;
+        while ((future = pending.poll()) != null) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.error("Verification task failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Waits for all queued verifications and stops the verification threads.
+     */
+    public void shutdown() throws InterruptedException {
+        awaitPending();
+        executor.shutdown();
+        executor.awaitTermination(60, TimeUnit.SECONDS);
+    }
+
+    public int getVerifiedCount() {
+        return verifiedCount.get();
+    }
+
+    public List<String> getFailures() {
+        return new ArrayList<String>(failures);
+    }
+
+    /**
+     * Computes the checksum of a file as stored on the device.
+     */
+    public static byte[] readbackDigest(Path path, MessageDigest digest) throws IOException {
+        digest.reset();
+        FileChannel channel;
+        try {
+            if (DIRECT == null) {
+                throw new UnsupportedOperationException("no direct I/O open option in this JDK");
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ, DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (!directFallbackLogged) {
+                directFallbackLogged = true;
+                log.warn("Direct I/O is not available for {} ({}), verifying through the page cache after fsync",
+                        path, e.toString());
+            }
+            try (FileChannel synced = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                synced.force(true);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        try (FileChannel in = channel) {
+            long blockSize = Files.getFileStore(path).getBlockSize();
+            boolean pooled = blockSize <= ALIGNMENT;
+            ByteBuffer buffer = pooled
+                    ? VERIFY_BUFFERS.acquire()
+                    : ByteBuffer.allocateDirect(VERIFY_BUFFER_SIZE + (int) blockSize).alignedSlice((int) blockSize);
+            try {
+                // Stop at the end instead of reading again from the unaligned EOF offset
+                long remaining = in.size();
+                while (remaining > 0) {
+                    buffer.clear();
+                    buffer.limit(VERIFY_BUFFER_SIZE);
+                    int read = in.read(buffer);
+                    if (read <= 0) {
+                        throw new IOException("Unexpected end of file while verifying " + path);
+                    }
+                    remaining -= read;
+                    buffer.flip();
+                    TaskExecutors.update(digest, buffer);
+                }
+            } finally {
+                if (pooled) {
+                    VERIFY_BUFFERS.release(buffer);
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static OpenOption directOpenOption() {
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) Enum.valueOf((Class<? extends Enum>) options, "DIRECT");
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -5,7 +5,9 @@ import org.bofus.sumcompare.model.FileMetadata;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 /**
@@ -94,6 +96,24 @@ public class DateFolderOrganizer {
      */
     public static String getDateBasedFolder(File file, DateSource dateSource, DatePattern pattern, boolean useMetadata)
             throws IOException {
+        return getDateBasedFolder(file, null, dateSource, pattern, useMetadata);
+    }
+
+    /**
+     * Generates a date-based folder path for the given file from metadata
+     * already captured, optionally using image/video metadata.
+     * 
+     * @param file        The file to organize
+     * @param metadata    The file system metadata of the file, or null to read it
+     * @param dateSource  Which timestamp to use (created, modified, or accessed)
+     * @param pattern     The folder structure pattern
+     * @param useMetadata Whether to try extracting date from image/video metadata
+     *                    (EXIF, etc.)
+     * @return The date-based folder path (e.g., "2024-10" or "2024/10/31")
+     * @throws IOException If metadata cannot be retrieved
+     */
+    public static String getDateBasedFolder(File file, FileMetadata metadata, DateSource dateSource,
+            DatePattern pattern, boolean useMetadata) throws IOException {
         LocalDateTime dateTime = null;
 
         // Try to use media metadata if enabled and file is a supported media type
@@ -101,7 +121,7 @@ public class DateFolderOrganizer {
             try {
                 java.time.Instant metadataDate = MediaMetadataExtractor.extractCreationDate(file);
                 if (metadataDate != null) {
-                    dateTime = LocalDateTime.ofInstant(metadataDate, java.time.ZoneId.systemDefault());
+                    dateTime = LocalDateTime.ofInstant(metadataDate, ZoneId.systemDefault());
                     log.trace("Using metadata date for {}: {}", file.getName(), dateTime);
                 }
             } catch (Exception e) {
@@ -112,26 +132,29 @@ public class DateFolderOrganizer {
 
         // Fallback to file system metadata if no media metadata was found
         if (dateTime == null) {
-            FileMetadata metadata = FileMetadata.fromFile(file);
+            if (metadata == null) {
+                metadata = FileMetadata.fromFile(file);
+            }
 
             // Get the appropriate timestamp based on dateSource
-            String timestamp;
+            long timestamp;
             switch (dateSource) {
                 case CREATED:
-                    timestamp = metadata.getCreationTime();
+                    timestamp = metadata.getCreationTimeMillis();
                     break;
                 case ACCESSED:
-                    timestamp = metadata.getLastAccessTime();
+                    timestamp = metadata.getLastAccessTimeMillis();
                     break;
                 case MODIFIED:
                 default:
-                    timestamp = metadata.getLastModifiedTime();
+                    timestamp = metadata.getLastModifiedTimeMillis();
                     break;
             }
+            if (timestamp == FileMetadata.UNKNOWN_TIME) {
+                timestamp = metadata.getLastModifiedTimeMillis();
+            }
 
-            // Parse the timestamp
-            DateTimeFormatter inputFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            dateTime = LocalDateTime.parse(timestamp, inputFormatter);
+            dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
         }
 
         // Format according to pattern
@@ -182,7 +205,31 @@ public class DateFolderOrganizer {
     public static File generateDateBasedTargetPath(File sourceFile, File baseTargetDir,
             DateSource dateSource, DatePattern pattern,
             boolean keepSourceStructure, boolean useMetadata) throws IOException {
-        String dateFolder = getDateBasedFolder(sourceFile, dateSource, pattern, useMetadata);
+        return generateDateBasedTargetPath(sourceFile, null, baseTargetDir, dateSource, pattern,
+                keepSourceStructure, useMetadata);
+    }
+
+    /**
+     * Generates the complete target path including date-based folder structure,
+     * from metadata already captured.
+     * 
+     * @param sourceFile          The source file being copied
+     * @param metadata            The file system metadata of the source file, or
+     *                            null to read it
+     * @param baseTargetDir       The base target directory
+     * @param dateSource          Which timestamp to use
+     * @param pattern             The folder structure pattern
+     * @param keepSourceStructure Whether to preserve source directory structure
+     *                            after date folder
+     * @param useMetadata         Whether to try extracting date from image/video
+     *                            metadata
+     * @return The complete target file path with date-based folders
+     * @throws IOException If metadata cannot be retrieved
+     */
+    public static File generateDateBasedTargetPath(File sourceFile, FileMetadata metadata, File baseTargetDir,
+            DateSource dateSource, DatePattern pattern,
+            boolean keepSourceStructure, boolean useMetadata) throws IOException {
+        String dateFolder = getDateBasedFolder(sourceFile, metadata, dateSource, pattern, useMetadata);
 
         if (keepSourceStructure) {
             // Preserve source structure within date folder
@@ -0,0 +1,63 @@
+package org.bofus.sumcompare.localutil;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Reusable direct buffers of one kind.
+ * <p>
+ * A platform thread keeps one buffer for its whole life. Virtual threads are
+ * many and often short lived, so they borrow a buffer from a shared pool for
+ * one file and give it back: the number of buffers then follows the reads in
+ * flight (which {@link IoScheduler} bounds per device), not the number of
+ * threads ever started.
+ */
+public class DirectBufferPool {
+
+    private final ThreadLocal<ByteBuffer> perThread;
+    private final Supplier<ByteBuffer> allocator;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param allocator Creates a new buffer
+     */
+    public DirectBufferPool(Supplier<ByteBuffer> allocator) {
+        this.allocator = allocator;
+        this.perThread = ThreadLocal.withInitial(allocator);
+    }
+
+    /**
+     * @param size The capacity of the buffers
+     */
+    public DirectBufferPool(int size) {
+        this(() -> ByteBuffer.allocateDirect(size));
+    }
+
+    /**
+     * Takes a cleared buffer, to be handed back with {@link #release}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+        if (Thread.currentThread().isVirtual()) {
+            buffer = free.poll();
+            if (buffer == null) {
+                buffer = allocator.get();
+            }
+        } else {
+            buffer = perThread.get();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands back a buffer taken by {@link #acquire} on the same thread.
+     */
+    public void release(ByteBuffer buffer) {
+        if (Thread.currentThread().isVirtual()) {
+            free.offer(buffer);
+        }
+    }
+}
@@ -85,7 +85,7 @@ public class FileMetadataUtils {
             FileMetadata meta2 = FileMetadata.fromFile(file2);
 
             return meta1.getSizeBytes() == meta2.getSizeBytes() &&
-                    meta1.getLastModifiedTime().equals(meta2.getLastModifiedTime());
+                    meta1.getLastModifiedTimeMillis() / 1000 == meta2.getLastModifiedTimeMillis() / 1000;
         } catch (IOException e) {
             log.error("Failed to compare metadata", e);
             return false;
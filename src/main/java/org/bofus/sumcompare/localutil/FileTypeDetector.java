@@ -2,15 +2,24 @@ package org.bofus.sumcompare.localutil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.tika.Tika;
+import org.apache.tika.mime.MediaType;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Utility class for detecting file types using Apache Tika.
- * Provides content-based file type detection rather than relying solely on file
- * extensions.
+ * <p>
+ * The type is taken from the file extension where Tika knows it, cached per
+ * extension, so most files are never opened. Only files without a known
+ * extension are sniffed by content: from their first bytes as already read by
+ * the hasher where it asked for them (see {@link #expectHead}), else by
+ * opening the file.
  */
 @Slf4j
 public class FileTypeDetector {
@@ -18,6 +27,18 @@ public class FileTypeDetector {
     // Thread-safe singleton Tika instance
     private static final Tika TIKA = new Tika();
 
+    /** Bytes kept from the start of a file for content sniffing */
+    public static final int HEAD_SIZE = 8192;
+
+    private static final String UNKNOWN_MIME_TYPE = MediaType.OCTET_STREAM.toString();
+    private static final byte[] NOT_READ = new byte[0];
+
+    // MIME type by lowercase extension, as detected by Tika from the name alone
+    private static final Map<String, String> EXTENSION_MIME_TYPES = new ConcurrentHashMap<String, String>();
+
+    // First bytes of files whose type is sniffed, NOT_READ until the hasher read them
+    private static final Map<String, byte[]> HEADS = new ConcurrentHashMap<String, byte[]>();
+
     /**
      * File type enumeration
      */
@@ -28,37 +49,119 @@ public class FileTypeDetector {
     }
 
     /**
-     * Detects the type of a file using Apache Tika's content-based detection.
-     * This method reads the actual file content to determine the type, rather than
-     * relying solely on file extensions.
+     * Detects the type of a file, from its extension where known, else from
+     * its content.
      * 
      * @param file The file to detect
      * @return FileType enum indicating VIDEO, IMAGE, or OTHER
      */
     public static FileType detectFileType(File file) {
-        if (file == null || !file.exists() || !file.isFile()) {
+        return detectFileType(file, null);
+    }
+
+    /**
+     * Detects the type of a file, from its extension where known, else from
+     * its content.
+     * 
+     * @param file The file to detect
+     * @param head The first bytes of the file if already read (see
+     *             {@link #takeHead}), or null to read them from the file when
+     *             needed
+     * @return FileType enum indicating VIDEO, IMAGE, or OTHER
+     */
+    public static FileType detectFileType(File file, byte[] head) {
+        if (file == null) {
             return FileType.OTHER;
         }
 
-        try {
-            String mimeType = detectMimeType(file);
-            if (mimeType != null) {
-                if (mimeType.startsWith("video/")) {
-                    log.trace("File {} detected as VIDEO by Tika: {}", file.getName(), mimeType);
-                    return FileType.VIDEO;
-                }
-                if (mimeType.startsWith("image/")) {
-                    log.trace("File {} detected as IMAGE by Tika: {}", file.getName(), mimeType);
-                    return FileType.IMAGE;
+        String mimeType = getMimeTypeByName(file.getName());
+        if (mimeType == null) {
+            try {
+                if (head != null) {
+                    mimeType = TIKA.detect(head, file.getName());
+                } else if (file.isFile()) {
+                    mimeType = detectMimeType(file);
                 }
+            } catch (IOException e) {
+                log.warn("Could not detect MIME type for {}: {}, falling back to OTHER", file.getName(),
+                        e.getMessage());
             }
-        } catch (IOException e) {
-            log.warn("Could not detect MIME type for {}: {}, falling back to OTHER", file.getName(), e.getMessage());
         }
 
+        if (mimeType != null) {
+            if (mimeType.startsWith("video/")) {
+                log.trace("File {} detected as VIDEO by Tika: {}", file.getName(), mimeType);
+                return FileType.VIDEO;
+            }
+            if (mimeType.startsWith("image/")) {
+                log.trace("File {} detected as IMAGE by Tika: {}", file.getName(), mimeType);
+                return FileType.IMAGE;
+            }
+        }
         return FileType.OTHER;
     }
 
+    /**
+     * @return Whether the type of a file follows from its name, so its content
+     *         is not needed
+     */
+    public static boolean isKnownByName(String fileName) {
+        return getMimeTypeByName(fileName) != null;
+    }
+
+    /**
+     * Asks the hasher to keep the first bytes of a file it reads, so the
+     * type of the file can be sniffed without opening it again. The bytes must
+     * be collected with {@link #takeHead}.
+     */
+    public static void expectHead(String path) {
+        HEADS.put(path, NOT_READ);
+    }
+
+    /**
+     * Keeps the first bytes of a file if {@link #expectHead} asked for them.
+     * Called by the readers with the first buffer they read.
+     */
+    public static void offerHead(String path, byte[] buffer, int length) {
+        if (!HEADS.isEmpty() && HEADS.get(path) == NOT_READ) {
+            HEADS.replace(path, NOT_READ, Arrays.copyOf(buffer, Math.min(length, HEAD_SIZE)));
+        }
+    }
+
+    /**
+     * Same as {@link #offerHead(String, byte[], int)} for the remaining bytes
+     * of a buffer, which is left unchanged.
+     */
+    public static void offerHead(String path, ByteBuffer buffer) {
+        if (!HEADS.isEmpty() && HEADS.get(path) == NOT_READ) {
+            byte[] head = new byte[Math.min(buffer.remaining(), HEAD_SIZE)];
+            buffer.duplicate().get(head);
+            HEADS.replace(path, NOT_READ, head);
+        }
+    }
+
+    /**
+     * @return The first bytes of a file asked for with {@link #expectHead}, or
+     *         null if the file was not read
+     */
+    public static byte[] takeHead(String path) {
+        byte[] head = HEADS.remove(path);
+        return head == NOT_READ ? null : head;
+    }
+
+    /**
+     * @return The MIME type Tika assigns to the extension of a file name, or
+     *         null if the extension is missing or unknown
+     */
+    private static String getMimeTypeByName(String fileName) {
+        String extension = getFileExtension(fileName);
+        if (extension.isEmpty()) {
+            return null;
+        }
+        String mimeType = EXTENSION_MIME_TYPES.computeIfAbsent(extension, ext -> TIKA.detect("file." + ext));
+        return UNKNOWN_MIME_TYPE.equals(mimeType) ? null : mimeType;
+    }
+
     /**
      * Gets the file extension from a filename.
      * 
@@ -126,7 +229,18 @@ public class FileTypeDetector {
      * @return A string describing the file type (e.g., "Video", "Image", "Other")
      */
     public static String getFileTypeDescription(File file) {
-        FileType type = detectFileType(file);
+        return getFileTypeDescription(file, null);
+    }
+
+    /**
+     * Gets a human-readable description of the file type.
+     * 
+     * @param file The file to check
+     * @param head The first bytes of the file if already read, or null
+     * @return A string describing the file type (e.g., "Video", "Image", "Other")
+     */
+    public static String getFileTypeDescription(File file, byte[] head) {
+        FileType type = detectFileType(file, head);
         switch (type) {
             case VIDEO:
                 return "Video";
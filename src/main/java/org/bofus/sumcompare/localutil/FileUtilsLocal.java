@@ -5,64 +5,263 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FilenameUtils;
 import org.bofus.sumcompare.model.ExistingTargetFileObject;
+import org.bofus.sumcompare.model.FileRecord;
 import org.bofus.sumcompare.model.PropertiesObject;
 import org.bofus.sumcompare.singletons.ExistingTargetFileObjectArraySingleton;
 import org.bofus.sumcompare.singletons.SourceFileArraySingleton;
 import org.bofus.sumcompare.singletons.SourceFileBackupArraySingleton;
 import org.bofus.sumcompare.singletons.SourceFileHashMapSingleton;
+import org.bofus.sumcompare.singletons.SourceFileSizeMapSingleton;
 import org.bofus.sumcompare.singletons.TargetFileArraySingleton;
+import org.bofus.sumcompare.singletons.TargetFileFingerprintMapSingleton;
 import org.bofus.sumcompare.singletons.TargetFileHashMapSingleton;
+import org.bofus.sumcompare.singletons.TargetFileSizeMapSingleton;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class FileUtilsLocal {
 
+  /**
+   * How file content is read and fed to the MessageDigest while hashing.
+   */
+  public enum HashReadMode {
+    /** FileInputStream into a heap byte[] (every byte is copied twice) */
+    STREAM,
+
+    /** FileChannel reads into a reused per-thread direct ByteBuffer */
+    CHANNEL,
+
+    /** FileChannel.map in regions of up to 1 GB, so files over 2 GB work */
+    MMAP
+  }
+
+  // 1 MB direct buffer per hashing thread (or per read in flight, on virtual
+  // threads), reused for every file
+  private static final int DIRECT_BUFFER_SIZE = 1 << 20;
+  // A single mapping is limited to 2 GB, so larger files are mapped in regions
+  private static final long MAP_REGION_SIZE = 1L << 30;
+  private static final DirectBufferPool DIRECT_BUFFERS = new DirectBufferPool(DIRECT_BUFFER_SIZE);
+
+  private static volatile HashReadMode hashReadMode = HashReadMode.STREAM;
+
+  public static HashReadMode getHashReadMode() {
+    return hashReadMode;
+  }
+
+  public static void setHashReadMode(HashReadMode mode) {
+    hashReadMode = mode;
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
   public static String getFileChecksum(MessageDigest digest, File file) throws IOException {
+    return toHex(getFileDigest(digest, file));
+  }
+
+  /**
+   * Computes the raw checksum bytes of a file. Prefer this over
+   * {@link #getFileChecksum(MessageDigest, File)} in hot paths: the hex form is
+   * only needed for logs and reports.
+   */
+  public static byte[] getFileDigest(MessageDigest digest, File file) throws IOException {
+    if (!ChecksumCache.isEnabled() && !ChecksumXattrs.isEnabled()) {
+      return computeFileDigest(digest, file);
+    }
+
+    // Attributes are read before hashing, so a file modified while it is being
+    // hashed is cached under its old mtime and recomputed on the next run
+    Path path = file.toPath();
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    String algorithm = digest.getAlgorithm();
+
+    // The checksum attribute travels with the file, so it is checked first
+    byte[] bytes = ChecksumXattrs.read(algorithm, path, attrs);
+    if (bytes != null) {
+      return bytes;
+    }
+
+    bytes = ChecksumCache.lookup(algorithm, path, attrs);
+    if (bytes == null) {
+      bytes = computeFileDigest(digest, file);
+      ChecksumCache.store(algorithm, path, attrs, bytes);
+    }
+    ChecksumXattrs.write(algorithm, path, attrs, bytes);
+    return bytes;
+  }
+
+  private static byte[] computeFileDigest(MessageDigest digest, File file) throws IOException {
     long startTime = System.nanoTime();
 
+    // Get the hash's bytes
+    byte[] bytes;
+    if (digest instanceof TreeHashMessageDigest) {
+      // Tree hashes read the file themselves, chunks in parallel
+      bytes = ((TreeHashMessageDigest) digest).digestFile(file.toPath());
+    } else {
+      switch (hashReadMode) {
+        case MMAP:
+          bytes = digestMapped(digest, file);
+          break;
+        case CHANNEL:
+          bytes = digestChannel(digest, file);
+          break;
+        case STREAM:
+        default:
+          bytes = digestStream(digest, file);
+          break;
+      }
+    }
+
+    if (log.isTraceEnabled()) {
+      long endTime = System.nanoTime();
+      long durationMs = (endTime - startTime) / 1_000_000;
+      long fileSizeBytes = file.length();
+      double fileSizeMB = fileSizeBytes / (1024.0 * 1024.0);
+      double throughputMBps = durationMs > 0 ? (fileSizeMB / (durationMs / 1000.0)) : 0;
+
+      log.trace(String.format("Checksum computed for %s (%.2f MB) in %d ms (%.2f MB/s) - Algorithm: %s",
+          file.getName(), fileSizeMB, durationMs, throughputMBps, digest.getAlgorithm()));
+    }
+
+    // return complete hash
+    return bytes;
+  }
+
+  /**
+   * Converts checksum bytes to lowercase hexadecimal.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Packs an 8 byte (big endian) checksum into a long.
+   */
+  public static long digestToLong(byte[] bytes) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static byte[] digestStream(MessageDigest digest, File file) throws IOException {
     // Use try-with-resources for automatic stream closure
     // Increased buffer size from 1KB to 64KB for better I/O performance
     try (FileInputStream fis = new FileInputStream(file)) {
       byte[] byteArray = new byte[65536]; // 64KB buffer (64x faster than 1KB)
-      int bytesCount;
+      int bytesCount = fis.read(byteArray);
+      if (bytesCount > 0) {
+        FileTypeDetector.offerHead(file.getPath(), byteArray, bytesCount);
+      }
 
       // Read file data and update in message digest
-      while ((bytesCount = fis.read(byteArray)) != -1) {
-        digest.update(byteArray, 0, bytesCount);
+      while (bytesCount != -1) {
+        TaskExecutors.update(digest, byteArray, 0, bytesCount);
+        bytesCount = fis.read(byteArray);
       }
     }
+    return digest.digest();
+  }
+
+  private static byte[] digestChannel(MessageDigest digest, File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return digestChannelContent(digest, file, channel);
+    }
+  }
 
-    // Get the hash's bytes
-    byte[] bytes = digest.digest();
+  private static byte[] digestMapped(MessageDigest digest, File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      // Setting up a mapping costs more than reading a small file
+      if (size <= DIRECT_BUFFER_SIZE) {
+        return digestChannelContent(digest, file, channel);
+      }
+
+      if (size <= MAP_REGION_SIZE && isOneShotCapable(digest)) {
+        MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        FileTypeDetector.offerHead(file.getPath(), mapping);
+        return TaskExecutors.cpuBound(() -> XXHashMessageDigest.digest64(mapping));
+      }
 
-    // Convert to hexadecimal format using more efficient approach
-    StringBuilder sb = new StringBuilder(bytes.length * 2);
-    for (byte b : bytes) {
-      sb.append(String.format("%02x", b));
+      for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+        MappedByteBuffer region =
+            channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, size - position));
+        if (position == 0) {
+          FileTypeDetector.offerHead(file.getPath(), region);
+        }
+        TaskExecutors.update(digest, region);
+      }
     }
+    return digest.digest();
+  }
 
-    long endTime = System.nanoTime();
-    long durationMs = (endTime - startTime) / 1_000_000;
-    long fileSizeBytes = file.length();
-    double fileSizeMB = fileSizeBytes / (1024.0 * 1024.0);
-    double throughputMBps = durationMs > 0 ? (fileSizeMB / (durationMs / 1000.0)) : 0;
+  private static byte[] digestChannelContent(MessageDigest digest, File file, FileChannel channel)
+      throws IOException {
+    ByteBuffer buffer = DIRECT_BUFFERS.acquire();
+    try {
+      return digestChannelContent(digest, file, channel, buffer);
+    } finally {
+      DIRECT_BUFFERS.release(buffer);
+    }
+  }
 
-    log.trace(String.format("Checksum computed for %s (%.2f MB) in %d ms (%.2f MB/s) - Algorithm: %s",
-        file.getName(), fileSizeMB, durationMs, throughputMBps, digest.getAlgorithm()));
+  private static byte[] digestChannelContent(MessageDigest digest, File file, FileChannel channel,
+      ByteBuffer buffer) throws IOException {
+    boolean streamed = false;
+    while (channel.read(buffer) != -1) {
+      if (!buffer.hasRemaining()) {
+        buffer.flip();
+        if (!streamed) {
+          FileTypeDetector.offerHead(file.getPath(), buffer);
+        }
+        TaskExecutors.update(digest, buffer);
+        buffer.clear();
+        streamed = true;
+      }
+    }
+    buffer.flip();
+    if (!streamed) {
+      FileTypeDetector.offerHead(file.getPath(), buffer);
+    }
 
-    // return complete hash
-    return sb.toString();
+    // The whole file fit in the buffer: hash it in one shot
+    if (!streamed && isOneShotCapable(digest)) {
+      return TaskExecutors.cpuBound(() -> XXHashMessageDigest.digest64(buffer));
+    }
+    TaskExecutors.update(digest, buffer);
+    return digest.digest();
+  }
+
+  private static boolean isOneShotCapable(MessageDigest digest) {
+    return digest instanceof XXHashMessageDigest && ((XXHashMessageDigest) digest).is64Bit();
   }
 
   public static MessageDigest SetDigestType(String typeFromArgs) throws NoSuchAlgorithmException {
@@ -76,6 +275,12 @@ public class FileUtilsLocal {
       returnData = new XXHashMessageDigest("XXHASH32");
     } else if (typeFromArgs.equalsIgnoreCase("XXHASH64")) {
       returnData = new XXHashMessageDigest("XXHASH64");
+    } else if (typeFromArgs.equalsIgnoreCase(XXH3MessageDigest.XXH3_64)) {
+      returnData = new XXH3MessageDigest(XXH3MessageDigest.XXH3_64);
+    } else if (typeFromArgs.equalsIgnoreCase(XXH3MessageDigest.XXH3_128)) {
+      returnData = new XXH3MessageDigest(XXH3MessageDigest.XXH3_128);
+    } else if (typeFromArgs.equalsIgnoreCase(TreeHashMessageDigest.XXH3_TREE)) {
+      returnData = new TreeHashMessageDigest();
     } else {
       log.error(
           String.format("Unknown digest type %s cannot continue.  Exiting...", typeFromArgs));
@@ -85,21 +290,42 @@ public class FileUtilsLocal {
     return returnData;
   }
 
-  public static void getSourceDirectoryContentsArray(String inputLocation)
+  /**
+   * Walks the whole source tree into {@link SourceFileArraySingleton} and the
+   * source size map, handing each file's record to the consumer as well. The
+   * consumer is called from several walking threads at once.
+   */
+  public static void getSourceDirectoryContentsArray(String inputLocation, Consumer<FileRecord> consumer)
       throws SQLException, PropertyVetoException {
     try {
-      File dir = new File(inputLocation);
-
-      File[] files = dir.listFiles();
-      for (File file : files) {
-        if (file.isDirectory()) {
-          getSourceDirectoryContentsArray(file.toString());
-        } else {
-          SourceFileArraySingleton.getInstance().addToArray(file.getCanonicalPath());
-        }
-      }
+      SourceFileArraySingleton sourceFiles = SourceFileArraySingleton.getInstance();
+      SourceFileSizeMapSingleton sourceSizes = SourceFileSizeMapSingleton.getInstance();
+      ParallelDirectoryWalker.walk(inputLocation, sourceFiles.getArray(), record -> {
+        sourceSizes.addToMap(record.getSize(), sourceFiles.getArray(), record.getPathId());
+        consumer.accept(record);
+      });
     } catch (IOException e) {
-      e.printStackTrace();
+      log.error("Error scanning source directory: " + inputLocation, e);
+    }
+  }
+
+  /**
+   * Walks the source tree and hands a record of each file (path id and
+   * attributes) to the consumer as soon as it is found. Only the paths are
+   * kept, compactly, in {@link SourceFileArraySingleton}. A consumer that
+   * blocks (e.g. a full pipeline queue) pauses the walk. The consumer is called
+   * from several walking threads at once.
+   *
+   * @return The number of files found
+   */
+  public static long walkSourceDirectory(String inputLocation, Consumer<FileRecord> consumer)
+      throws SQLException, PropertyVetoException {
+    try {
+      return ParallelDirectoryWalker.walk(inputLocation, SourceFileArraySingleton.getInstance().getArray(),
+          consumer::accept);
+    } catch (IOException e) {
+      log.error("Error scanning source directory: " + inputLocation, e);
+      return 0;
     }
   }
 
@@ -107,24 +333,36 @@ public class FileUtilsLocal {
       SourceFileArraySingleton sourceFileArray, MessageDigest digestType)
       throws IOException, SQLException, PropertyVetoException {
 
+    SourceFileSizeMapSingleton sourceSizes = SourceFileSizeMapSingleton.getInstance();
+    TargetFileSizeMapSingleton targetSizes = TargetFileSizeMapSingleton.getInstance();
+
     // Use parallel stream for concurrent checksum computation
-    SourceFileArraySingleton.getInstance().getArray().parallelStream().forEach(fileString -> {
+    // Only files whose size collides with another file can have a duplicate, so
+    // files with a unique size are never read
+    PathStore sourceFiles = sourceFileArray.getArray();
+    IntStream.range(0, sourceFiles.size()).parallel().forEach(fileId -> {
+      String fileString = sourceFiles.get(fileId);
       try {
+        long size = new File(fileString).length();
+        if (sourceSizes.getCount(size) < 2 && !targetSizes.containsSize(size)) {
+          return;
+        }
+
         File thisFile = new File(fileString);
         // Clone digest for thread-safety
         MessageDigest threadDigest = (MessageDigest) digestType.clone();
-        String thisFileChecksum = FileUtilsLocal.getFileChecksum(threadDigest, thisFile);
+        byte[] thisFileChecksum = FileUtilsLocal.getFileDigest(threadDigest, thisFile);
 
         // Synchronized access to shared HashMap
         synchronized (SourceFileHashMapSingleton.getInstance().getMap()) {
-          if (SourceFileHashMapSingleton.getInstance().getMap().containsKey(thisFileChecksum)) {
+          if (SourceFileHashMapSingleton.getInstance().containsChecksum(thisFileChecksum)) {
             log.trace(
                 String.format(
                     "Hashmap already contains an entry for checksum: %s with filename of %s",
-                    thisFileChecksum,
-                    SourceFileHashMapSingleton.getInstance().getMap().get(thisFileChecksum)));
+                    toHex(thisFileChecksum),
+                    SourceFileHashMapSingleton.getInstance().getPath(thisFileChecksum)));
           } else {
-            SourceFileHashMapSingleton.getInstance().addToMap(thisFileChecksum, fileString);
+            SourceFileHashMapSingleton.getInstance().addToMap(thisFileChecksum, fileId);
           }
         }
       } catch (Exception e) {
@@ -135,24 +373,18 @@ public class FileUtilsLocal {
     log.debug(
         String.format(
             "Hashmap size for source files: %s",
-            SourceFileHashMapSingleton.getInstance().getMap().size()));
+            SourceFileHashMapSingleton.getInstance().size()));
   }
 
   public static void getTargetDirectoryContentsArray(String inputLocation)
       throws SQLException, PropertyVetoException {
     try {
-      File dir = new File(inputLocation);
-
-      File[] files = dir.listFiles();
-      for (File file : files) {
-        if (file.isDirectory()) {
-          getTargetDirectoryContentsArray(file.toString());
-        } else {
-          TargetFileArraySingleton.getInstance().addToArray(file.getCanonicalPath());
-        }
-      }
+      TargetFileArraySingleton targetFiles = TargetFileArraySingleton.getInstance();
+      TargetFileSizeMapSingleton targetSizes = TargetFileSizeMapSingleton.getInstance();
+      ParallelDirectoryWalker.walk(inputLocation, targetFiles.getArray(),
+          record -> targetSizes.addToMap(record.getSize(), targetFiles.getArray(), record.getPathId()));
     } catch (IOException e) {
-      e.printStackTrace();
+      log.error("Error scanning target directory: " + inputLocation, e);
     }
   }
 
@@ -160,47 +392,87 @@ public class FileUtilsLocal {
       TargetFileArraySingleton targetFileArray, MessageDigest digestType)
       throws IOException, SQLException, PropertyVetoException {
 
-    // Use parallel stream for concurrent checksum computation (Java 21 optimized)
-    TargetFileArraySingleton.getInstance().getArray().parallelStream().forEach(fileString -> {
-      try {
-        File thisFile = new File(fileString);
-        // Clone digest for thread-safety (MessageDigest is not thread-safe)
-        MessageDigest threadDigest = (MessageDigest) digestType.clone();
-        String thisFileChecksum = FileUtilsLocal.getFileChecksum(threadDigest, thisFile);
-
-        // Synchronized access to shared HashMap
-        synchronized (TargetFileHashMapSingleton.getInstance().getMap()) {
-          if (TargetFileHashMapSingleton.getInstance().getMap().containsKey(thisFileChecksum)) {
-            String existingFile = TargetFileHashMapSingleton.getInstance().getMap().get(thisFileChecksum);
-            log.trace(
-                String.format(
-                    "Hashmap already contains an entry for checksum: %s with filename of %s",
-                    thisFileChecksum, existingFile));
+    TargetFileSizeMapSingleton targetSizes = TargetFileSizeMapSingleton.getInstance();
+    // The singletons are created lazily, which is not thread-safe, so create
+    // the ones the workers add to before they start
+    ExistingTargetFileObjectArraySingleton.getInstance();
+    TargetFileFingerprintMapSingleton.getInstance();
+
+    // Only target files whose size collides with another target file can be
+    // existing duplicates. Those are fingerprinted here and fully hashed when
+    // their fingerprints collide; every other target file is compared lazily
+    // when a source file of the same size is looked up.
+    List<Long> collidingSizes = new ArrayList<Long>();
+    for (Map.Entry<Long, PathStore.IdList> bucket : targetSizes.getMap().entrySet()) {
+      if (bucket.getValue().size() > 1) {
+        collidingSizes.add(bucket.getKey());
+      }
+    }
+    log.debug(
+        String.format(
+            "Size prefilter: %d of %d target size buckets contain more than one file",
+            collidingSizes.size(), targetSizes.getMap().size()));
 
-            ExistingTargetFileObject thisObject = new ExistingTargetFileObject();
-            thisObject.setCurrentFile(fileString);
-            thisObject.setExistingFile(existingFile);
-            thisObject.setFileChecksum(thisFileChecksum);
-            ExistingTargetFileObjectArraySingleton.getInstance().addToArray(thisObject);
-          } else {
-            TargetFileHashMapSingleton.getInstance().addToMap(thisFileChecksum, fileString);
-          }
+    if (PhysicalOrder.isEnabled()) {
+      TieredChecksumEngine.resolveTargetDuplicatesInPhysicalOrder(collidingSizes, digestType);
+    } else {
+      // Use parallel stream for concurrent checksum computation (Java 21 optimized)
+      TaskExecutors.forEach(collidingSizes, size -> {
+        try {
+          // Clone digest for thread-safety (MessageDigest is not thread-safe)
+          MessageDigest threadDigest = (MessageDigest) digestType.clone();
+          TieredChecksumEngine.resolveTargetDuplicates(size, threadDigest);
+        } catch (Exception e) {
+          log.error("Error processing target files of size: " + size, e);
         }
-      } catch (Exception e) {
-        log.error("Error processing file: " + fileString, e);
-      }
-    });
+      });
+    }
 
     log.debug(
         String.format(
             "Hashmap size for target files: %s",
-            TargetFileHashMapSingleton.getInstance().getMap().size()));
+            TargetFileHashMapSingleton.getInstance().size()));
     log.debug(
         String.format(
             "Hashmap size for duplicate/existing target files: %s",
             ExistingTargetFileObjectArraySingleton.getInstance().getArray().size()));
   }
 
+  /**
+   * Records the full checksum of a target file. If another target file already
+   * has this checksum, the file is recorded as an existing duplicate instead.
+   *
+   * @param fileId The id of the file in the target walk
+   */
+  public static void registerTargetChecksum(byte[] checksum, int fileId)
+      throws IOException, SQLException, PropertyVetoException {
+    // Lookup and insert are one atomic step, so no lock is needed
+    String existingFile = TargetFileHashMapSingleton.getInstance().putIfAbsent(checksum, fileId);
+    TargetIndex targetIndex = TargetIndex.getActive();
+    if (existingFile == null && targetIndex == null) {
+      return;
+    }
+
+    String fileString = TargetFileArraySingleton.getInstance().getArray().get(fileId);
+    if (existingFile != null) {
+      log.trace(
+          String.format(
+              "Hashmap already contains an entry for checksum: %s with filename of %s",
+              toHex(checksum), existingFile));
+
+      ExistingTargetFileObject thisObject = new ExistingTargetFileObject();
+      thisObject.setCurrentFile(fileString);
+      thisObject.setExistingFile(existingFile);
+      thisObject.setFileChecksum(toHex(checksum));
+      ExistingTargetFileObjectArraySingleton.getInstance().addToArray(thisObject);
+    }
+
+    // Keep the on-disk index current with every checksum computed during the run
+    if (targetIndex != null) {
+      targetIndex.add(checksum, fileString);
+    }
+  }
+
   public static String getFilePath(String file) {
     String filePathString = null;
     File filePath = null;
@@ -0,0 +1,203 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limits the number of concurrent file operations per device.
+ * <p>
+ * Each path is resolved to the device holding it ({@code st_dev}), and every
+ * device has its own concurrency limit, so a spinning disk on one side of a
+ * copy is not made to thrash by a thread count meant for the SSD on the other
+ * side. On Linux, {@code /sys/dev/block/<major>:<minor>/queue/rotational}
+ * tells rotational disks ({@link #ROTATIONAL_CONCURRENCY}) from solid state
+ * and network storage ({@link #SOLID_STATE_CONCURRENCY}). Devices are
+ * resolved once per directory. A task run while its thread already holds a
+ * slot on the device does not take a second one.
+ */
+@Slf4j
+public class IoScheduler {
+
+    /** Concurrent operations on a rotational disk */
+    public static final int ROTATIONAL_CONCURRENCY = 2;
+
+    /** Concurrent operations on SSD, NVMe, network and unknown storage */
+    public static final int SOLID_STATE_CONCURRENCY = 32;
+
+    // Key of the single device used where st_dev is not available
+    private static final long UNKNOWN_DEVICE = -1;
+
+    private static final Map<Long, Device> DEVICES = new ConcurrentHashMap<Long, Device>();
+    private static final Map<Path, Device> DIRECTORIES = new ConcurrentHashMap<Path, Device>();
+
+    // Devices on which the current thread holds a slot, so nested tasks on the
+    // same device do not wait for a second slot, which could deadlock
+    private static final ThreadLocal<Set<Device>> HELD = ThreadLocal.withInitial(HashSet::new);
+
+    // 0 means detect per device
+    private static volatile int concurrencyOverride;
+
+    private static class Device {
+        private final long id;
+        private final Semaphore permits;
+
+        private Device(long id, int limit) {
+            this.id = id;
+            this.permits = new Semaphore(limit, true);
+        }
+    }
+
+    /**
+     * Uses the same concurrency limit for every device instead of detecting
+     * it; 0 restores detection.
+     */
+    public static void setConcurrencyOverride(int limit) {
+        concurrencyOverride = limit;
+    }
+
+    /**
+     * Runs a task once the device holding the path has a free slot.
+     */
+    public static <T> T run(Path path, Callable<T> task) throws Exception {
+        Device device = deviceOf(path);
+        boolean acquired = acquire(device);
+        try {
+            return task.call();
+        } finally {
+            release(device, acquired);
+        }
+    }
+
+    /**
+     * Runs a task once the devices holding both paths (e.g. the source and
+     * target of a copy) have a free slot. Slots are always taken in device
+     * order, so two tasks waiting for the same devices cannot deadlock.
+     */
+    public static <T> T run(Path first, Path second, Callable<T> task) throws Exception {
+        Device a = deviceOf(first);
+        Device b = deviceOf(second);
+        if (a == b) {
+            return run(first, task);
+        }
+        if (a.id > b.id) {
+            Device swap = a;
+            a = b;
+            b = swap;
+        }
+
+        boolean acquiredA = acquire(a);
+        try {
+            boolean acquiredB = acquire(b);
+            try {
+                return task.call();
+            } finally {
+                release(b, acquiredB);
+            }
+        } finally {
+            release(a, acquiredA);
+        }
+    }
+
+    /**
+     * Takes a slot on the device unless the current thread holds one.
+     *
+     * @return Whether a slot was taken
+     */
+    private static boolean acquire(Device device) throws InterruptedException {
+        Set<Device> held = HELD.get();
+        if (held.contains(device)) {
+            return false;
+        }
+        device.permits.acquire();
+        held.add(device);
+        return true;
+    }
+
+    private static void release(Device device, boolean acquired) {
+        if (acquired) {
+            HELD.get().remove(device);
+            device.permits.release();
+        }
+    }
+
+    private static Device deviceOf(Path path) {
+        Path directory = path.toAbsolutePath().getParent();
+        Device known = directory == null ? null : DIRECTORIES.get(directory);
+        if (known != null) {
+            return known;
+        }
+
+        // Targets may not exist yet: use the nearest existing directory
+        while (directory != null && !Files.isDirectory(directory)) {
+            directory = directory.getParent();
+        }
+        if (directory == null) {
+            return DEVICES.computeIfAbsent(UNKNOWN_DEVICE, id -> newDevice(id, "unknown"));
+        }
+        return DIRECTORIES.computeIfAbsent(directory, IoScheduler::resolveDevice);
+    }
+
+    private static Device resolveDevice(Path directory) {
+        long dev;
+        try {
+            dev = ((Number) Files.getAttribute(directory, "unix:dev")).longValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            dev = UNKNOWN_DEVICE;
+        }
+        return DEVICES.computeIfAbsent(dev, id -> newDevice(id, directory.toString()));
+    }
+
+    private static Device newDevice(long dev, String firstPath) {
+        String id = dev == UNKNOWN_DEVICE ? "unknown" : major(dev) + ":" + minor(dev);
+        Boolean rotational = dev == UNKNOWN_DEVICE ? null : isRotational(major(dev), minor(dev));
+        int limit = concurrencyOverride > 0
+                ? concurrencyOverride
+                : Boolean.TRUE.equals(rotational) ? ROTATIONAL_CONCURRENCY : SOLID_STATE_CONCURRENCY;
+        String kind = rotational == null ? "no block device" : rotational ? "rotational" : "solid state";
+        log.info("I/O device {} ({}, first used for {}): {} concurrent operations", id, kind, firstPath, limit);
+        return new Device(dev, limit);
+    }
+
+    /**
+     * @return Whether the block device is rotational, or null if it is not a
+     *         block device (network and memory file systems)
+     */
+    private static Boolean isRotational(long major, long minor) {
+        Path device = Paths.get("/sys/dev/block/" + major + ":" + minor);
+        if (!Files.exists(device)) {
+            return null;
+        }
+        try {
+            device = device.toRealPath();
+            // Partitions have no queue of their own, their disk does
+            Path queue = device.resolve("queue/rotational");
+            if (!Files.exists(queue)) {
+                queue = device.getParent().resolve("queue/rotational");
+            }
+            return new String(Files.readAllBytes(queue), StandardCharsets.US_ASCII).trim().equals("1");
+        } catch (IOException e) {
+            log.debug("Cannot read the queue type of block device {}:{}: {}", major, minor, e.toString());
+            return null;
+        }
+    }
+
+    // Linux dev_t encoding, as in glibc's gnu_dev_major/gnu_dev_minor
+    private static long major(long dev) {
+        return ((dev >>> 8) & 0xfff) | ((dev >>> 32) & 0xfffff000L);
+    }
+
+    private static long minor(long dev) {
+        return (dev & 0xff) | ((dev >>> 12) & 0xffffff00L);
+    }
+}
@@ -0,0 +1,181 @@
+package org.bofus.sumcompare.localutil;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive {@code long} keys to non-negative
+ * {@code int} values (file ids), with linear probing.
+ * <p>
+ * Keys and values live in two parallel arrays, so an entry costs 12 bytes
+ * (about 16 at the maximum load factor) instead of a boxed key, a String and a
+ * HashMap node. A slot is empty when its value is {@link #NO_VALUE}, which
+ * lets every long, including 0, be used as a key. Not thread-safe.
+ */
+public class LongIntHashMap {
+
+    /** Returned when a key is absent; never stored as a value */
+    public static final int NO_VALUE = -1;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongIntHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize Number of entries to hold without resizing
+     */
+    public LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor((int) Math.ceil(expectedSize / LOAD_FACTOR)));
+    }
+
+    /**
+     * @return the value for the key, or {@link #NO_VALUE}
+     */
+    public int get(long key) {
+        int slot = slot(key);
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Associates the value with the key, replacing any previous value.
+     *
+     * @return the previous value, or {@link #NO_VALUE}
+     */
+    public int put(long key, int value) {
+        return insert(key, value, true);
+    }
+
+    /**
+     * Associates the value with the key only if the key is absent.
+     *
+     * @return the existing value, or {@link #NO_VALUE} if the value was stored
+     */
+    public int putIfAbsent(long key, int value) {
+        return insert(key, value, false);
+    }
+
+    /**
+     * Removes the key.
+     *
+     * @return the removed value, or {@link #NO_VALUE} if the key was absent
+     */
+    public int remove(long key) {
+        int slot = slot(key);
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                closeGap(slot);
+                size--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    private int insert(long key, int value, boolean replace) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must be non-negative: " + value);
+        }
+
+        int slot = slot(key);
+        while (values[slot] != NO_VALUE) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                if (replace) {
+                    values[slot] = value;
+                }
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return NO_VALUE;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    // Empties a slot, moving back later entries of the probe run whose home
+    // slot is not between the gap and themselves, so no lookup stops early
+    private void closeGap(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == NO_VALUE) {
+                values[gap] = NO_VALUE;
+                return;
+            }
+            int home = slot(keys[slot]);
+            boolean homeInRun = gap <= slot ? home > gap && home <= slot : home > gap || home <= slot;
+            if (!homeInRun) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int slot = slot(oldKeys[i]);
+                while (values[slot] != NO_VALUE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        return Math.max(size, 2);
+    }
+}
@@ -0,0 +1,151 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.bofus.sumcompare.model.FileRecord;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Walks a directory tree on a {@link ForkJoinPool}, one {@link RecursiveTask}
+ * per directory, and streams every regular file to a handler as soon as it is
+ * found.
+ * <p>
+ * Only the root is canonicalized; the paths are built from the canonical root
+ * and the entry names, so no per-file {@code realpath} is needed, and are
+ * added to a {@link PathStore}, the records handed out only holding their
+ * ids. The JDK does not expose the directory entry type, so every entry
+ * costs a single attribute read (one {@code stat}), which also fills the
+ * {@link FileRecord} handed out, so later stages need not stat the file again.
+ * Symbolic links are followed, as before. Directory listings block on
+ * slow file systems such as NFS, so the pool is larger than the number of
+ * cores, letting many directories be listed at once.
+ */
+@Slf4j
+public class ParallelDirectoryWalker {
+
+    /** Default number of directories listed at once */
+    public static final int DEFAULT_PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Receives the files found; called from several threads at once.
+     */
+    @FunctionalInterface
+    public interface FileHandler {
+        void accept(FileRecord record);
+    }
+
+    // POSIX or DOS attributes come from the same stat, and also give the
+    // read-only and hidden flags (see FileRecord.isReadOnly)
+    private static final Class<? extends BasicFileAttributes> ATTRIBUTES = attributeType();
+
+    /**
+     * Walks the tree below the given directory.
+     *
+     * @param root        The directory to walk
+     * @param parallelism Number of walking threads
+     * @param paths       The store the paths of the files are added to
+     * @param handler     Receives a record of each regular file
+     * @return The number of files found
+     */
+    public static long walk(String root, int parallelism, PathStore paths, FileHandler handler)
+            throws IOException {
+        Path canonicalRoot = Paths.get(new File(root).getCanonicalPath());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(new DirectoryTask(canonicalRoot, paths, handler)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while walking " + root, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Error walking " + root, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static long walk(String root, PathStore paths, FileHandler handler) throws IOException {
+        return walk(root, DEFAULT_PARALLELISM, paths, handler);
+    }
+
+    /**
+     * Lists one directory, handing out its files and forking a task per
+     * subdirectory.
+     */
+    private static class DirectoryTask extends RecursiveTask<Long> {
+        private final Path directory;
+        private final PathStore paths;
+        private final FileHandler handler;
+
+        private DirectoryTask(Path directory, PathStore paths, FileHandler handler) {
+            this.directory = directory;
+            this.paths = paths;
+            this.handler = handler;
+        }
+
+        @Override
+        protected Long compute() {
+            long count = 0;
+            List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, ATTRIBUTES);
+                    } catch (IOException e) {
+                        log.warn("Cannot read attributes of {}: {}", entry, e.toString());
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        DirectoryTask task = new DirectoryTask(entry, paths, handler);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (attrs.isRegularFile()) {
+                        try {
+                            handler.accept(FileRecord.of(paths, paths.addPath(entry.toString()), entry, attrs));
+                            count++;
+                        } catch (IOException e) {
+                            log.warn("Cannot read attributes of {}: {}", entry, e.toString());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Cannot list directory {}: {}", directory, e.toString());
+            }
+
+            for (DirectoryTask task : subdirectories) {
+                count += task.join();
+            }
+            return count;
+        }
+    }
+
+    private static Class<? extends BasicFileAttributes> attributeType() {
+        Set<String> views = FileSystems.getDefault().supportedFileAttributeViews();
+        if (views.contains("posix")) {
+            return PosixFileAttributes.class;
+        }
+        if (views.contains("dos")) {
+            return DosFileAttributes.class;
+        }
+        return BasicFileAttributes.class;
+    }
+}
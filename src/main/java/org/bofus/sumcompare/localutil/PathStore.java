@@ -0,0 +1,326 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact storage of file paths, for trees of millions of files.
+ * <p>
+ * Every directory is stored once, in a table of parent directory ids and
+ * names, and every file as the id of its directory and its name. Names are
+ * UTF-8 bytes in shared pages. Files are referred to by int id, and a full
+ * path String is only rebuilt when asked for. A file costs 12 bytes plus the
+ * length of its name, where a String of the absolute path takes some 40 bytes
+ * plus the whole path, at one or two bytes per character.
+ * <p>
+ * The store is also a {@link java.util.List} of its paths, in the order they
+ * were added. Adding is thread-safe; reading takes no lock and sees every path
+ * added before {@link #size} was read.
+ */
+public class PathStore extends AbstractList<String> implements RandomAccess {
+
+    // Names never span pages, so a page is never copied when the store grows
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_NAME_LENGTH = 0xffff;
+    private static final char SEPARATOR = File.separatorChar;
+
+    // Parent of a top-level directory (such as "" for "/", or "C:")
+    private static final int NO_PARENT = -1;
+
+    // Name bytes; a name is referenced by page, position and length
+    private volatile byte[][] pages;
+    private int pageCount;
+    private int pagePosition;
+
+    // Directory table
+    private volatile int[] directoryParents;
+    private volatile long[] directoryNames;
+    private int directoryCount;
+    // "<parent id>/<name>" -> directory id, to find directories when adding
+    private final Map<String, Integer> directoryIds = new HashMap<String, Integer>();
+
+    // File table
+    private volatile int[] fileDirectories;
+    private volatile long[] fileNames;
+    private volatile int fileCount;
+
+    // Directory of the last file added, as most files come in directory order
+    private String lastDirectory;
+    private int lastDirectoryId;
+
+    public PathStore() {
+        reset();
+    }
+
+    /**
+     * Adds a path.
+     *
+     * @return The id of the path, its index in this list
+     */
+    public synchronized int addPath(String path) {
+        int separator = path.lastIndexOf(SEPARATOR);
+        int directory = NO_PARENT;
+        if (separator >= 0) {
+            String directoryPath = path.substring(0, separator);
+            if (!directoryPath.equals(lastDirectory)) {
+                lastDirectoryId = directoryId(directoryPath);
+                lastDirectory = directoryPath;
+            }
+            directory = lastDirectoryId;
+        }
+
+        int id = fileCount;
+        if (id == fileDirectories.length) {
+            int capacity = grow(id);
+            fileDirectories = Arrays.copyOf(fileDirectories, capacity);
+            fileNames = Arrays.copyOf(fileNames, capacity);
+        }
+        fileDirectories[id] = directory;
+        fileNames[id] = storeName(path.substring(separator + 1));
+        fileCount = id + 1;
+        return id;
+    }
+
+    /**
+     * Same as {@link #addPath}.
+     */
+    @Override
+    public boolean add(String path) {
+        addPath(path);
+        return true;
+    }
+
+    /**
+     * Rebuilds a path.
+     *
+     * @param id The id returned by {@link #addPath}
+     */
+    @Override
+    public String get(int id) {
+        if (id < 0 || id >= fileCount) {
+            throw new IndexOutOfBoundsException("Path id " + id + " of " + fileCount);
+        }
+        byte[][] namePages = pages;
+        int[] parents = directoryParents;
+        long[] directoryNameRefs = directoryNames;
+
+        // Collect the names from the file up to the top-level directory
+        long[] chain = new long[16];
+        int depth = 0;
+        chain[depth++] = fileNames[id];
+        for (int directory = fileDirectories[id]; directory != NO_PARENT; directory = parents[directory]) {
+            if (depth == chain.length) {
+                chain = Arrays.copyOf(chain, depth * 2);
+            }
+            chain[depth++] = directoryNameRefs[directory];
+        }
+
+        int length = depth - 1;
+        for (int i = 0; i < depth; i++) {
+            length += nameLength(chain[i]);
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int i = depth - 1; i >= 0; i--) {
+            int nameLength = nameLength(chain[i]);
+            System.arraycopy(namePages[namePage(chain[i])], namePosition(chain[i]), bytes, position, nameLength);
+            position += nameLength;
+            if (i > 0) {
+                bytes[position++] = (byte) SEPARATOR;
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return fileCount;
+    }
+
+    /**
+     * Removes all paths; ids handed out before are no longer valid.
+     */
+    @Override
+    public synchronized void clear() {
+        reset();
+    }
+
+    /**
+     * @return The number of distinct directories stored
+     */
+    synchronized int directoryCount() {
+        return directoryCount;
+    }
+
+    /**
+     * Creates an empty list of paths of this store, held as their ids.
+     */
+    public IdList newIdList() {
+        return new IdList(this);
+    }
+
+    /**
+     * A list of paths held in a {@link PathStore}, kept as their ids (4 bytes
+     * per path). Its methods are synchronized on the list.
+     */
+    public static class IdList extends AbstractList<String> implements RandomAccess {
+        private final PathStore store;
+        private int[] ids = new int[4];
+        private int size;
+
+        private IdList(PathStore store) {
+            this.store = store;
+        }
+
+        /**
+         * Adds a path already in the store.
+         */
+        public synchronized void addId(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * @return The id in the store of the path at this index
+         */
+        public synchronized int getId(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+            }
+            return ids[index];
+        }
+
+        /**
+         * Replaces the path at this index by another path already in the store.
+         */
+        public synchronized void setId(int index, int id) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+            }
+            ids[index] = id;
+        }
+
+        /**
+         * @return A copy of the ids, in list order
+         */
+        public synchronized int[] toIdArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        /**
+         * Adds the path to the store, and its id to this list.
+         */
+        @Override
+        public synchronized boolean add(String path) {
+            addId(store.addPath(path));
+            return true;
+        }
+
+        @Override
+        public synchronized String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+            }
+            return store.get(ids[index]);
+        }
+
+        @Override
+        public synchronized int size() {
+            return size;
+        }
+
+        @Override
+        public synchronized void clear() {
+            ids = new int[4];
+            size = 0;
+        }
+    }
+
+    private int directoryId(String directoryPath) {
+        int separator = directoryPath.lastIndexOf(SEPARATOR);
+        int parent = separator < 0 ? NO_PARENT : directoryId(directoryPath.substring(0, separator));
+        String name = directoryPath.substring(separator + 1);
+
+        String key = parent + "/" + name;
+        Integer known = directoryIds.get(key);
+        if (known != null) {
+            return known;
+        }
+
+        int id = directoryCount;
+        if (id == directoryParents.length) {
+            int capacity = grow(id);
+            directoryParents = Arrays.copyOf(directoryParents, capacity);
+            directoryNames = Arrays.copyOf(directoryNames, capacity);
+        }
+        directoryParents[id] = parent;
+        directoryNames[id] = storeName(name);
+        directoryCount = id + 1;
+        directoryIds.put(key, id);
+        return id;
+    }
+
+    /**
+     * Copies a name into the pages.
+     *
+     * @return The reference of the name: page, position and length
+     */
+    private long storeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " bytes: " + name);
+        }
+        if (pagePosition + bytes.length > PAGE_SIZE) {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pageCount * 2);
+            }
+            pages[pageCount++] = new byte[PAGE_SIZE];
+            pagePosition = 0;
+        }
+        int page = pageCount - 1;
+        System.arraycopy(bytes, 0, pages[page], pagePosition, bytes.length);
+        long reference = ((long) page << 36) | ((long) pagePosition << 16) | bytes.length;
+        pagePosition += bytes.length;
+        return reference;
+    }
+
+    private static int namePage(long reference) {
+        return (int) (reference >>> 36);
+    }
+
+    private static int namePosition(long reference) {
+        return (int) (reference >>> 16) & (PAGE_SIZE - 1);
+    }
+
+    private static int nameLength(long reference) {
+        return (int) reference & MAX_NAME_LENGTH;
+    }
+
+    // Capacity after a table of this size is full
+    private static int grow(int size) {
+        return size + (size >> 1) + 16;
+    }
+
+    private void reset() {
+        pages = new byte[16][];
+        pages[0] = new byte[PAGE_SIZE];
+        pageCount = 1;
+        pagePosition = 0;
+        directoryParents = new int[64];
+        directoryNames = new long[64];
+        directoryCount = 0;
+        directoryIds.clear();
+        fileDirectories = new int[64];
+        fileNames = new long[64];
+        lastDirectory = null;
+        fileCount = 0;
+    }
+}
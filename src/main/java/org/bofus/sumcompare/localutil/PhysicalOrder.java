@@ -0,0 +1,144 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Physical-order scheduling of bulk reads, for rotational disks.
+ * <p>
+ * When enabled, files are read in inode order by a few sequential readers
+ * instead of in parallel in arbitrary order, so a disk head sweeps across the
+ * platter instead of seeking back and forth. On ext4 and XFS inode numbers
+ * follow allocation groups, so inode order approximates on-disk order. (The
+ * physical extent itself would need the {@code FIEMAP} ioctl, which cannot be
+ * called without native code or the Java 21 preview FFM API.)
+ */
+@Slf4j
+public class PhysicalOrder {
+
+    /** Number of readers working through the sorted files */
+    public static final int READERS = IoScheduler.ROTATIONAL_CONCURRENCY;
+
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Receives one file of the files given to {@link PhysicalOrder#forEach}.
+     */
+    @FunctionalInterface
+    public interface FileAction {
+        /**
+         * @param index The position of the file in the ids given
+         * @param path  The path of the file
+         */
+        void accept(int index, String path);
+    }
+
+    /**
+     * Runs an action for every file and waits for all of them: in inode order
+     * on {@link #READERS} threads when enabled, else in parallel through
+     * {@link TaskExecutors#forEach}.
+     *
+     * @param store  The store holding the paths
+     * @param ids    Ids of the files in the store
+     * @param action Reads one file; called from several threads at once
+     */
+    public static void forEach(PathStore store, int[] ids, FileAction action) {
+        if (!enabled) {
+            TaskExecutors.forEach(new Positions(ids.length), index -> action.accept(index, store.get(ids[index])));
+            return;
+        }
+
+        int[] sorted = sortByInode(store, ids);
+        AtomicInteger next = new AtomicInteger();
+        Runnable reader = () -> {
+            int position;
+            while ((position = next.getAndIncrement()) < sorted.length) {
+                int index = sorted[position];
+                String path = store.get(ids[index]);
+                try {
+                    action.accept(index, path);
+                } catch (RuntimeException e) {
+                    log.error("Error reading " + path, e);
+                }
+            }
+        };
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < Math.min(READERS, sorted.length); i++) {
+            Thread thread = new Thread(reader, "sumcompare-sequential-" + (i + 1));
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The positions in {@code ids} of the files ordered by inode
+     *         number; files whose inode cannot be read keep their relative order
+     *         at the end
+     */
+    public static int[] sortByInode(PathStore store, int[] ids) {
+        long[] inodes = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            inodes[i] = inode(store.get(ids[i]));
+        }
+        // A stable sort, so equal inodes keep their order
+        int[] sorted = IntStream.range(0, ids.length).boxed()
+                .sorted(Comparator.comparingLong(index -> inodes[index]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        log.debug("Reading {} files in inode order", sorted.length);
+        return sorted;
+    }
+
+    // The numbers 0 to size - 1, without storing them
+    private static class Positions extends AbstractList<Integer> implements RandomAccess {
+        private final int size;
+
+        private Positions(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return index;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static long inode(String path) {
+        try {
+            return ((Number) Files.getAttribute(Paths.get(path), "unix:ino")).longValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
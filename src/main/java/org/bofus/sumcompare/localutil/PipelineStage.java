@@ -0,0 +1,205 @@
+package org.bofus.sumcompare.localutil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One stage of a bounded producer/consumer pipeline: a fixed number of worker
+ * threads taking items from a bounded queue.
+ * <p>
+ * {@link #accept} blocks while the queue is full, so a slow stage throttles
+ * the stage feeding it and, in the end, the directory walk, instead of letting
+ * work pile up in memory. Items can be queued before the stage is started;
+ * the producer then waits once the queue is full. {@link #finish} lets the
+ * workers drain the queue and waits for them, after which the next stage can
+ * be finished in turn.
+ * <p>
+ * The number of workers allowed to run at once can be lowered below the
+ * number of worker threads and raised again while the stage runs (see
+ * {@link ThreadAutoTuner}).
+ *
+ * @param <T> The type of the items
+ */
+@Slf4j
+public class PipelineStage<T> implements Consumer<T> {
+
+    /** Default number of items queued in front of a stage */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Processes one item; exceptions are logged and do not stop the stage.
+     */
+    @FunctionalInterface
+    public interface Worker<T> {
+        void process(T item) throws Exception;
+    }
+
+    // Queued once per worker by finish(), each worker stops when it takes one
+    private static final Object END = new Object();
+
+    private final String name;
+    private final Worker<T> worker;
+    private final BlockingQueue<Object> queue;
+    private final Thread[] threads;
+    private final AdjustableSemaphore running;
+    private int concurrency;
+    private ToLongFunction<T> sizeOf;
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong processedBytes = new AtomicLong();
+
+    // Semaphore whose number of permits can be lowered
+    private static class AdjustableSemaphore extends Semaphore {
+        private AdjustableSemaphore(int permits) {
+            super(permits);
+        }
+
+        private void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /**
+     * @param name        Name of the stage, used for its threads and in logs
+     * @param workerCount Number of worker threads
+     * @param capacity    Number of items that can wait in front of the stage
+     * @param worker      Processes the items
+     */
+    public PipelineStage(String name, int workerCount, int capacity, Worker<T> worker) {
+        this.name = name;
+        this.worker = worker;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+        this.threads = new Thread[Math.max(1, workerCount)];
+        this.concurrency = threads.length;
+        this.running = new AdjustableSemaphore(concurrency);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = TaskExecutors.newThread("sumcompare-" + name + "-" + (i + 1), this::work);
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public PipelineStage<T> start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Queues an item, waiting while the queue is full.
+     *
+     * @throws CancellationException if the thread is interrupted while waiting
+     */
+    @Override
+    public void accept(T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while queueing for the " + name + " stage");
+        }
+    }
+
+    /**
+     * Processes everything queued so far and stops the worker threads. Nothing
+     * may be queued afterwards.
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) {
+            queue.put(END);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.debug("{} stage finished, {} items processed", name, processedCount.get());
+    }
+
+    /**
+     * Counts the bytes of every processed item, e.g. the file size.
+     */
+    public PipelineStage<T> countBytes(ToLongFunction<T> sizeOf) {
+        this.sizeOf = sizeOf;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWorkerCount() {
+        return threads.length;
+    }
+
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Sets how many workers may process items at once, between 1 and the
+     * number of worker threads. Workers over the new limit stop after their
+     * current item.
+     */
+    public synchronized void setConcurrency(int limit) {
+        int target = Math.max(1, Math.min(threads.length, limit));
+        if (target > concurrency) {
+            running.release(target - concurrency);
+        } else if (target < concurrency) {
+            running.reduce(concurrency - target);
+        }
+        concurrency = target;
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    public long getProcessedBytes() {
+        return processedBytes.get();
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+        while (true) {
+            Object item;
+            try {
+                running.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (item == END) {
+                    return;
+                }
+                try {
+                    worker.process((T) item);
+                    if (sizeOf != null) {
+                        processedBytes.addAndGet(sizeOf.applyAsLong((T) item));
+                    }
+                } catch (Exception e) {
+                    log.error("Error in the " + name + " stage for: " + item, e);
+                } finally {
+                    processedCount.incrementAndGet();
+                }
+            } finally {
+                running.release();
+            }
+        }
+    }
+}
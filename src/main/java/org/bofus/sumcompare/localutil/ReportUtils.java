@@ -4,6 +4,7 @@ import java.beans.PropertyVetoException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Map;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
@@ -115,10 +116,10 @@ public class ReportUtils {
 
 		// Add the rows for the file data
 		int notCopiedRowCount = 1;
-		for (String key : MatchingFileHashMapSingleton.getInstance().getMap().keySet()) {
+		for (Map.Entry<String, String> match : MatchingFileHashMapSingleton.getInstance().getMap().entrySet()) {
 			Row currentRow = notCopiedSheet.createRow(notCopiedRowCount);
-			currentRow.createCell(0).setCellValue(key);
-			currentRow.createCell(1).setCellValue(MatchingFileHashMapSingleton.getInstance().getMap().get(key));
+			currentRow.createCell(0).setCellValue(match.getKey());
+			currentRow.createCell(1).setCellValue(match.getValue());
 			notCopiedRowCount++;
 		}
 
@@ -0,0 +1,228 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Watches a source tree with a {@link WatchService} and hands newly created or
+ * modified files to a handler in batches.
+ * <p>
+ * Every directory of the tree is registered, including directories created
+ * while watching (whose existing files are picked up too). A file is only
+ * handed over once no event was seen for it during the quiet period, so files
+ * that are still being written (e.g. by a camera or an upload) are not copied
+ * half-finished. When the watch service overflows, the whole tree is queued
+ * again, so no file is missed.
+ * <p>
+ * Call {@link #start} before the initial scan of the tree: events for files
+ * created or modified during the scan are then kept by the watch service and
+ * handled by {@link #run}.
+ */
+@Slf4j
+public class SourceWatcher implements Closeable {
+
+    /** Time a file must be left alone before it is processed */
+    public static final long DEFAULT_QUIET_PERIOD_MS = 2000;
+
+    /** Largest number of files handed over at once */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final Path root;
+    private final long quietPeriodMs;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+    // File -> time of its last event, in arrival order
+    private final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+    private boolean started;
+
+    public SourceWatcher(Path root, long quietPeriodMs) throws IOException {
+        this.root = root;
+        this.quietPeriodMs = quietPeriodMs;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Registers every directory of the tree, so events are recorded from now
+     * on. Done by {@link #run} if not called before.
+     */
+    public void start() throws IOException {
+        if (!started) {
+            registerTree(root, false);
+            if (directories.isEmpty()) {
+                throw new IOException("Cannot watch " + root);
+            }
+            started = true;
+            log.info("Watching {} directories below {}", directories.size(), root);
+        }
+    }
+
+    /**
+     * Watches the tree until the thread is interrupted or the watch service is
+     * closed.
+     *
+     * @param batchHandler Receives canonical paths of settled files
+     */
+    public void run(Consumer<List<String>> batchHandler) throws IOException {
+        start();
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Sleep until something happens, or wake up to flush settled files
+                WatchKey key = pending.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(quietPeriodMs / 2, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+
+                List<String> batch = takeSettledFiles();
+                if (!batch.isEmpty()) {
+                    log.info("Processing {} new or modified source files", batch.size());
+                    batchHandler.accept(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed, stop watching
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // A directory that cannot be read any more must not stop the watcher
+            try {
+                handleEvent(directory, event);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Cannot handle {} event in {}: {}", event.kind(), directory, e.toString());
+            }
+        }
+
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void handleEvent(Path directory, WatchEvent<?> event) throws IOException {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            log.warn("Watch events were lost, queueing the whole source tree again");
+            registerTree(root, true);
+            return;
+        }
+        if (directory == null) {
+            return;
+        }
+
+        Path child = directory.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            pending.remove(child);
+        } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                // Files may have been created before the directory was registered
+                registerTree(child, true);
+            }
+        } else {
+            // Re-inserted, so the debounce restarts and the order follows the last event
+            pending.remove(child);
+            pending.put(child, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Removes and returns files that had no event during the quiet period.
+     */
+    private List<String> takeSettledFiles() {
+        List<String> batch = new ArrayList<String>();
+        long settledBefore = System.currentTimeMillis() - quietPeriodMs;
+        Iterator<Map.Entry<Path, Long>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (entry.getValue() > settledBefore) {
+                // Entries are ordered by their last event, so the rest are newer
+                break;
+            }
+            iterator.remove();
+            if (Files.isRegularFile(entry.getKey())) {
+                try {
+                    batch.add(entry.getKey().toFile().getCanonicalPath());
+                } catch (IOException e) {
+                    log.error("Could not resolve source file: " + entry.getKey(), e);
+                }
+            }
+        }
+        return batch;
+    }
+
+    private void registerTree(Path start, boolean queueFiles) throws IOException {
+        long now = System.currentTimeMillis();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                // Directories of uploads and rsync are often gone or not yet
+                // readable by the time they are registered
+                WatchKey key;
+                try {
+                    key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                } catch (IOException e) {
+                    log.warn("Cannot watch {}: {}", dir, e.toString());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (queueFiles && attrs.isRegularFile()) {
+                    pending.remove(file);
+                    pending.put(file, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                if (e != null) {
+                    log.warn("Cannot list {}: {}", dir, e.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Cannot watch {}: {}", file, e.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
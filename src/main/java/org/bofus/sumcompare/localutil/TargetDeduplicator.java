@@ -0,0 +1,148 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bofus.sumcompare.model.ExistingTargetFileObject;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Replaces duplicate files inside the target with hard links or reflinks to a
+ * single canonical copy.
+ * <p>
+ * The duplicates are the {@link ExistingTargetFileObject} entries found while
+ * computing target checksums; the file recorded first for a checksum is the
+ * canonical copy. A checksum match alone is never trusted: both files are
+ * compared byte for byte right before the replacement, which is made by
+ * linking (or cloning) to a temporary name next to the duplicate and renaming
+ * it over the duplicate, so the duplicate's path never disappears.
+ */
+@Slf4j
+public class TargetDeduplicator {
+
+    private static final String TEMP_SUFFIX = ".sumcompare-dedupe";
+
+    /**
+     * How a duplicate is replaced.
+     */
+    public enum DedupeMethod {
+        /** Hard link to the canonical copy; both paths share one inode */
+        HARDLINK,
+
+        /** Reflink clone of the canonical copy (btrfs, XFS); the duplicate keeps its own inode and mtime */
+        REFLINK
+    }
+
+    /**
+     * Outcome of a deduplication run.
+     */
+    @Data
+    public static class DedupeResult {
+        private int replaced;
+        private int skipped;
+        private long bytesReclaimed;
+    }
+
+    /**
+     * Replaces every verified duplicate.
+     *
+     * @param duplicates The target duplicates to replace
+     * @param method     How to replace them
+     * @param dryRun     Only report what would be replaced
+     * @return The number of files replaced or skipped and the bytes reclaimed
+     */
+    public static DedupeResult dedupe(List<ExistingTargetFileObject> duplicates, DedupeMethod method,
+            boolean dryRun) {
+        DedupeResult result = new DedupeResult();
+        for (ExistingTargetFileObject duplicate : duplicates) {
+            Path canonical = Paths.get(duplicate.getExistingFile());
+            Path target = Paths.get(duplicate.getCurrentFile());
+            try {
+                long reclaimed = dedupeFile(canonical, target, method, dryRun);
+                if (reclaimed < 0) {
+                    result.setSkipped(result.getSkipped() + 1);
+                } else {
+                    result.setReplaced(result.getReplaced() + 1);
+                    result.setBytesReclaimed(result.getBytesReclaimed() + reclaimed);
+                }
+            } catch (IOException e) {
+                result.setSkipped(result.getSkipped() + 1);
+                log.error("Could not deduplicate " + target + " against " + canonical, e);
+            }
+        }
+
+        log.info(String.format("Target deduplication (%s): %d %s, %d skipped, %s reclaimed",
+                method, result.getReplaced(), dryRun ? "would be replaced" : "replaced", result.getSkipped(),
+                FileUtils.byteCountToDisplaySize(result.getBytesReclaimed())));
+        return result;
+    }
+
+    /**
+     * @return The bytes reclaimed, or -1 if the file was skipped
+     */
+    private static long dedupeFile(Path canonical, Path duplicate, DedupeMethod method, boolean dryRun)
+            throws IOException {
+        if (Files.isSameFile(canonical, duplicate)) {
+            log.debug("{} is already a hard link to {}", duplicate, canonical);
+            return -1;
+        }
+        if (method == DedupeMethod.HARDLINK && !CopyEngine.isSameFileStore(canonical, duplicate)) {
+            log.warn("Skipping {}: hard links cannot cross file systems ({})", duplicate, canonical);
+            return -1;
+        }
+
+        // Byte for byte, the checksum match alone is not trusted
+        long mismatch = Files.mismatch(canonical, duplicate);
+        if (mismatch != -1) {
+            log.warn("Skipping {}: content differs from {} at byte {}", duplicate, canonical, mismatch);
+            return -1;
+        }
+
+        long size = Files.size(duplicate);
+        // The space of a file with other hard links is not freed by replacing one of them
+        long reclaimed = linkCount(duplicate) > 1 ? 0 : size;
+        if (dryRun) {
+            log.info("Would replace {} with a {} to {}", duplicate, method == DedupeMethod.HARDLINK
+                    ? "hard link" : "reflink", canonical);
+            return reclaimed;
+        }
+
+        Path temp = duplicate.resolveSibling("." + duplicate.getFileName() + TEMP_SUFFIX);
+        Files.deleteIfExists(temp);
+        try {
+            if (method == DedupeMethod.HARDLINK) {
+                Files.createLink(temp, canonical);
+            } else {
+                FileTime modified = Files.getLastModifiedTime(duplicate);
+                if (!CopyEngine.reflink(canonical, temp)) {
+                    log.warn("Skipping {}: reflink not supported", duplicate);
+                    return -1;
+                }
+                Files.setLastModifiedTime(temp, modified);
+            }
+            Files.move(temp, duplicate, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        log.info("Replaced {} with a {} to {}", duplicate, method == DedupeMethod.HARDLINK
+                ? "hard link" : "reflink", canonical);
+        return reclaimed;
+    }
+
+    private static int linkCount(Path file) {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+}
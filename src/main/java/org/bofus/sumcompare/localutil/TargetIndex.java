@@ -0,0 +1,574 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent checksum to path index of a target directory, stored in
+ * {@code ~/.sumcompare/index/} and memory-mapped, so it opens in milliseconds
+ * and answers lookups without scanning the target.
+ * <p>
+ * The file holds a header, two open-addressing tables that are mapped into
+ * memory, and an append-only region of path records ({@code size, mtime,
+ * previous record, digest, UTF-8 path}). The digest table maps a digest to
+ * its latest record, and every record links to the record before it with the
+ * same digest; the path table maps the 64 bit hash of a path to the latest
+ * record of that path. Every record carries the size and mtime the digest was
+ * computed for, so a record whose file was modified or removed is recognised
+ * as stale and never reported: a lookup follows the links to a current file
+ * with the same content, and points the digest at it. Nothing is loaded into
+ * the heap when the index is opened. The index is built incrementally: only
+ * new or changed target files are hashed by
+ * {@link #update(PathStore, MessageDigest)}, and the tables are doubled when
+ * one is half full.
+ * <p>
+ * Only one process may write an index at a time (guarded by a lock file);
+ * any number of processes may read it.
+ */
+@Slf4j
+public class TargetIndex implements Closeable {
+
+    private static final int MAGIC = 0x53434932; // "SCI2"
+    // Indexes without the path table and record links
+    private static final int OLD_MAGIC = 0x53434931; // "SCI1"
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int PATHS_LENGTH_OFFSET = 16;
+    private static final int ALGORITHM_OFFSET = 24;
+    private static final int PATH_COUNT_OFFSET = 56;
+    // Path table slot: path hash, record offset + 1 (0 when empty)
+    private static final int PATH_SLOT_SIZE = 2 * Long.BYTES;
+    static final int INITIAL_CAPACITY = 1 << 16;
+
+    private static volatile TargetIndex active;
+
+    private final Path indexFile;
+    private final String algorithm;
+    private final int digestLength;
+    private final int slotSize;
+    private final int recordHeaderSize;
+    private final boolean writable;
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private int pathCount;
+    private long pathsLength;
+
+    /**
+     * A path record: the file and the size, mtime and digest it was indexed
+     * with.
+     */
+    @Data
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final byte[] digest;
+
+        /**
+         * @return true if the file still exists with the indexed size and mtime
+         */
+        public boolean isCurrent() {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+                return attrs.size() == size && attrs.lastModifiedTime().toMillis() == modifiedTime;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private TargetIndex(Path indexFile, String algorithm, int digestLength, boolean writable) {
+        this.indexFile = indexFile;
+        this.algorithm = algorithm;
+        this.digestLength = digestLength;
+        this.slotSize = digestLength + Long.BYTES;
+        this.recordHeaderSize = 3 * Long.BYTES + digestLength + Integer.BYTES;
+        this.writable = writable;
+    }
+
+    /**
+     * The default index location, {@code ~/.sumcompare/index}.
+     */
+    public static Path getDefaultDirectory() {
+        return new File(System.getProperty("user.home"), ".sumcompare" + File.separator + "index").toPath();
+    }
+
+    /**
+     * The index file of a target directory for an algorithm. The name is derived
+     * from the canonical target path, so each target has its own index.
+     */
+    public static Path getIndexFile(String targetLocation, String algorithm) throws IOException {
+        String canonicalTarget = new File(targetLocation).getCanonicalPath();
+        byte[] pathBytes = canonicalTarget.getBytes(StandardCharsets.UTF_8);
+        String hash = FileUtilsLocal.toHex(XXHashMessageDigest.digest64(ByteBuffer.wrap(pathBytes)));
+        return getDefaultDirectory().resolve(algorithm + "-" + hash + ".idx");
+    }
+
+    /**
+     * Opens an index for reading, e.g. to answer lookups.
+     *
+     * @throws NoSuchFileException if the target has not been indexed yet
+     */
+    public static TargetIndex openForReading(Path indexFile, String algorithm, int digestLength)
+            throws IOException {
+        TargetIndex index = new TargetIndex(indexFile, algorithm, digestLength, false);
+        index.channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+        index.mapTable();
+        return index;
+    }
+
+    /**
+     * Opens an index for updating, creating it if it does not exist.
+     *
+     * @throws IOException if another process is updating the same index
+     */
+    public static TargetIndex openForWriting(Path indexFile, String algorithm, int digestLength)
+            throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        TargetIndex index = new TargetIndex(indexFile, algorithm, digestLength, true);
+        index.lockChannel = FileChannel.open(indexFile.resolveSibling(indexFile.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        index.lock = index.lockChannel.tryLock();
+        if (index.lock == null) {
+            index.lockChannel.close();
+            throw new IOException("Index is being updated by another process: " + indexFile);
+        }
+
+        index.channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (index.channel.size() == 0) {
+            index.initialize();
+        } else if (index.readMagic() == OLD_MAGIC) {
+            log.info("Rebuilding index {}, written by an older version", indexFile);
+            index.channel.truncate(0);
+            index.initialize();
+        }
+        index.mapTable();
+        log.debug("Opened index {} with {} checksums of {} paths", indexFile, index.count, index.pathCount);
+        return index;
+    }
+
+    /**
+     * Sets the index that target checksums and copied files computed during a
+     * run are recorded in, or null for none.
+     */
+    public static void setActive(TargetIndex index) {
+        active = index;
+    }
+
+    public static TargetIndex getActive() {
+        return active;
+    }
+
+    /**
+     * Finds an indexed file with the given checksum. If the file the checksum
+     * was last indexed for changed or disappeared, the earlier files indexed
+     * with it are tried, and a writable index remembers the one found.
+     *
+     * @return The entry, or null if the checksum is not indexed or none of its
+     *         files is unchanged since it was indexed
+     */
+    public synchronized Entry lookup(byte[] digest) throws IOException {
+        checkDigest(digest);
+        int slot = probe(table, capacity - 1, digest);
+        long head = table.getLong(slotOffset(slot) + digestLength);
+        for (long ref = head; ref != 0; ref = readPrevious(ref - 1)) {
+            Entry entry = readRecord(ref - 1);
+            if (entry.isCurrent() && pathRef(entry.getPath()) == ref) {
+                if (ref != head && writable) {
+                    table.putLong(slotOffset(slot) + digestLength, ref);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the checksum of a file, unless it is indexed already with its
+     * current size and mtime. The file becomes the one a lookup of the
+     * checksum finds first.
+     *
+     * @param digest The checksum of the file
+     * @param path   The canonical path of the file
+     */
+    public synchronized void add(byte[] digest, String path) throws IOException {
+        if (!writable) {
+            throw new IllegalStateException("Index is opened read-only: " + indexFile);
+        }
+        checkDigest(digest);
+        BasicFileAttributes attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        long size = attrs.size();
+        long modifiedTime = attrs.lastModifiedTime().toMillis();
+
+        long pathHash = hashPath(path);
+        int pathSlot = probePath(pathHash, path);
+        long indexedRef = table.getLong(pathSlotOffset(pathSlot) + Long.BYTES);
+        if (indexedRef != 0) {
+            Entry indexed = readRecord(indexedRef - 1);
+            if (indexed.getSize() == size && indexed.getModifiedTime() == modifiedTime
+                    && MessageDigest.isEqual(indexed.getDigest(), digest)) {
+                return;
+            }
+        }
+
+        int slot = probe(table, capacity - 1, digest);
+        long head = table.getLong(slotOffset(slot) + digestLength);
+        int newCount = head == 0 ? count + 1 : count;
+        int newPathCount = indexedRef == 0 ? pathCount + 1 : pathCount;
+        if (newCount > capacity / 2 || newPathCount > capacity / 2) {
+            grow();
+            slot = probe(table, capacity - 1, digest);
+            pathSlot = probePath(pathHash, path);
+        }
+
+        long recordOffset = appendRecord(new Entry(path, size, modifiedTime, digest), head);
+        // Slots are written after the record, so a reader never sees an
+        // unwritten record
+        if (head == 0) {
+            table.put(slotOffset(slot), digest);
+        }
+        table.putLong(slotOffset(slot) + digestLength, recordOffset + 1);
+        table.putLong(pathSlotOffset(pathSlot), pathHash);
+        table.putLong(pathSlotOffset(pathSlot) + Long.BYTES, recordOffset + 1);
+        count = newCount;
+        pathCount = newPathCount;
+        table.putInt(COUNT_OFFSET, count);
+        table.putInt(PATH_COUNT_OFFSET, pathCount);
+    }
+
+    /**
+     * Brings the index up to date with the given target files: files that are
+     * new or changed since they were indexed are hashed (in parallel, or in
+     * {@link PhysicalOrder}) and added.
+     *
+     * @param targetFiles Canonical paths of all files in the target
+     * @param digestType  The digest to clone for hashing
+     * @return The number of files hashed
+     */
+    public int update(PathStore targetFiles, MessageDigest digestType) throws IOException {
+        PathStore.IdList pending = targetFiles.newIdList();
+        for (int fileId = 0; fileId < targetFiles.size(); fileId++) {
+            Entry indexed = indexedEntry(targetFiles.get(fileId));
+            if (indexed == null || !indexed.isCurrent()) {
+                pending.addId(fileId);
+            }
+        }
+        log.info("Indexing {} new or changed target files ({} already indexed)", pending.size(),
+                targetFiles.size() - pending.size());
+
+        PhysicalOrder.forEach(targetFiles, pending.toIdArray(), (index, file) -> {
+            try {
+                // Clone digest for thread-safety (MessageDigest is not thread-safe)
+                MessageDigest threadDigest = (MessageDigest) digestType.clone();
+                File targetFile = new File(file);
+                // Reads wait for a free slot on the target device
+                add(IoScheduler.run(targetFile.toPath(), () -> FileUtilsLocal.getFileDigest(threadDigest, targetFile)),
+                        file);
+            } catch (Exception e) {
+                log.error("Error indexing target file: " + file, e);
+            }
+        });
+
+        return pending.size();
+    }
+
+    /**
+     * @return The number of distinct checksums in the index
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writable) {
+            table.force();
+            channel.force(false);
+        }
+        channel.close();
+        if (lock != null) {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * @return The latest record of a path, or null if it is not indexed
+     */
+    private synchronized Entry indexedEntry(String path) throws IOException {
+        long ref = pathRef(path);
+        return ref == 0 ? null : readRecord(ref - 1);
+    }
+
+    // Offset + 1 of the latest record of a path, or 0
+    private long pathRef(String path) throws IOException {
+        return table.getLong(pathSlotOffset(probePath(hashPath(path), path)) + Long.BYTES);
+    }
+
+    private void initialize() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(digestLength);
+        header.putInt(INITIAL_CAPACITY);
+        header.putInt(0);
+        header.putLong(0);
+        byte[] name = algorithm.getBytes(StandardCharsets.UTF_8);
+        header.put((byte) name.length);
+        header.put(name);
+        header.putInt(PATH_COUNT_OFFSET, 0);
+        header.clear();
+        writeFully(channel, header, 0);
+    }
+
+    private void mapTable() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        byte[] name = new byte[header.get(ALGORITHM_OFFSET)];
+        header.get(ALGORITHM_OFFSET + 1, name);
+        if (header.getInt(0) == OLD_MAGIC) {
+            throw new IOException("Index written by an older version, run the index command again: " + indexFile);
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(4) != digestLength
+                || !algorithm.equals(new String(name, StandardCharsets.UTF_8))) {
+            throw new IOException("Not a " + algorithm + " target index: " + indexFile);
+        }
+        capacity = header.getInt(CAPACITY_OFFSET);
+        count = header.getInt(COUNT_OFFSET);
+        pathCount = header.getInt(PATH_COUNT_OFFSET);
+        pathsLength = header.getLong(PATHS_LENGTH_OFFSET);
+        table = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                pathsStart());
+    }
+
+    private int readMagic() throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        readFully(magic, 0);
+        return magic.getInt(0);
+    }
+
+    /**
+     * Doubles both tables. The index is rewritten to a temporary file with the
+     * slots rehashed and the path records copied unchanged (their offsets are
+     * relative to the start of the path region), then moved into place.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        long newTableSize = HEADER_SIZE + (long) newCapacity * (slotSize + PATH_SLOT_SIZE);
+        if (newTableSize > Integer.MAX_VALUE) {
+            throw new IOException("Target index is full: " + indexFile);
+        }
+
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer newTable = out.map(FileChannel.MapMode.READ_WRITE, 0, newTableSize);
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                newTable.put(i, table.get(i));
+            }
+            newTable.putInt(CAPACITY_OFFSET, newCapacity);
+
+            byte[] digest = new byte[digestLength];
+            for (int slot = 0; slot < capacity; slot++) {
+                long ref = table.getLong(slotOffset(slot) + digestLength);
+                if (ref != 0) {
+                    table.get(slotOffset(slot), digest);
+                    int newSlot = probe(newTable, newCapacity - 1, digest);
+                    newTable.put(slotOffset(newSlot), digest);
+                    newTable.putLong(slotOffset(newSlot) + digestLength, ref);
+                }
+            }
+            // Paths in the table are distinct, so each only needs a free slot
+            long newPathTable = HEADER_SIZE + (long) newCapacity * slotSize;
+            for (int slot = 0; slot < capacity; slot++) {
+                long ref = table.getLong(pathSlotOffset(slot) + Long.BYTES);
+                if (ref != 0) {
+                    long pathHash = table.getLong(pathSlotOffset(slot));
+                    int newSlot = hashSlot(pathHash) & (newCapacity - 1);
+                    while (newTable.getLong((int) (newPathTable + (long) newSlot * PATH_SLOT_SIZE) + Long.BYTES) != 0) {
+                        newSlot = (newSlot + 1) & (newCapacity - 1);
+                    }
+                    int offset = (int) (newPathTable + (long) newSlot * PATH_SLOT_SIZE);
+                    newTable.putLong(offset, pathHash);
+                    newTable.putLong(offset + Long.BYTES, ref);
+                }
+            }
+            newTable.force();
+
+            long copied = 0;
+            while (copied < pathsLength) {
+                copied += channel.transferTo(pathsStart() + copied, pathsLength - copied,
+                        out.position(newTableSize + copied));
+            }
+            out.force(false);
+        }
+
+        channel.close();
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapTable();
+        log.debug("Grew index {} to {} slots", indexFile, capacity);
+    }
+
+    /**
+     * @param previous Offset + 1 of the record before it with the same digest,
+     *                 or 0
+     */
+    private long appendRecord(Entry entry, long previous) throws IOException {
+        byte[] pathBytes = entry.getPath().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(recordHeaderSize + pathBytes.length);
+        record.putLong(entry.getSize());
+        record.putLong(entry.getModifiedTime());
+        record.putLong(previous);
+        record.put(entry.getDigest());
+        record.putInt(pathBytes.length);
+        record.put(pathBytes);
+        record.flip();
+
+        long offset = pathsLength;
+        writeFully(channel, record, pathsStart() + offset);
+        pathsLength += record.capacity();
+        table.putLong(PATHS_LENGTH_OFFSET, pathsLength);
+        return offset;
+    }
+
+    private Entry readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(recordHeaderSize);
+        readFully(header, pathsStart() + offset);
+        header.flip();
+        long size = header.getLong();
+        long modifiedTime = header.getLong();
+        header.getLong();
+        byte[] digest = new byte[digestLength];
+        header.get(digest);
+        ByteBuffer pathBytes = ByteBuffer.allocate(header.getInt());
+        readFully(pathBytes, pathsStart() + offset + recordHeaderSize);
+        return new Entry(new String(pathBytes.array(), StandardCharsets.UTF_8), size, modifiedTime, digest);
+    }
+
+    /**
+     * @return Offset + 1 of the record before this one with the same digest, or
+     *         0
+     */
+    private long readPrevious(long offset) throws IOException {
+        ByteBuffer previous = ByteBuffer.allocate(Long.BYTES);
+        readFully(previous, pathsStart() + offset + 2 * Long.BYTES);
+        return previous.getLong(0);
+    }
+
+    /**
+     * Finds the slot holding the digest, or the empty slot where it belongs.
+     */
+    private int probe(ByteBuffer slots, int mask, byte[] digest) {
+        int slot = hashSlot(digest) & mask;
+        while (true) {
+            int offset = slotOffset(slot);
+            if (slots.getLong(offset + digestLength) == 0) {
+                return slot;
+            }
+            boolean equal = true;
+            for (int i = 0; i < digestLength && equal; i++) {
+                equal = slots.get(offset + i) == digest[i];
+            }
+            if (equal) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Finds the path table slot holding the path, or the empty slot where it
+     * belongs. Paths whose hashes are equal are told apart by their records.
+     */
+    private int probePath(long pathHash, String path) throws IOException {
+        int mask = capacity - 1;
+        int slot = hashSlot(pathHash) & mask;
+        while (true) {
+            int offset = pathSlotOffset(slot);
+            long ref = table.getLong(offset + Long.BYTES);
+            if (ref == 0 || (table.getLong(offset) == pathHash && readRecord(ref - 1).getPath().equals(path))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hashSlot(byte[] digest) {
+        long hash = 0;
+        for (int i = 0; i < Math.min(digest.length, 8); i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hashSlot(hash);
+    }
+
+    private static int hashSlot(long hash) {
+        hash *= 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long hashPath(String path) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        return FileUtilsLocal.digestToLong(XXHashMessageDigest.digest64(ByteBuffer.wrap(pathBytes)));
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private int pathSlotOffset(int slot) {
+        return HEADER_SIZE + capacity * slotSize + slot * PATH_SLOT_SIZE;
+    }
+
+    private long pathsStart() {
+        return HEADER_SIZE + (long) capacity * (slotSize + PATH_SLOT_SIZE);
+    }
+
+    private void checkDigest(byte[] digest) {
+        if (digest.length != digestLength) {
+            throw new IllegalArgumentException(
+                    "Expected a " + digestLength + " byte " + algorithm + " digest, got " + digest.length);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated target index: " + indexFile);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
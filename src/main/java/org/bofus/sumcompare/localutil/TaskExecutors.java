@@ -0,0 +1,167 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Threads and executors for the work of a run, depending on the
+ * {@link ExecutionMode}.
+ * <p>
+ * In {@link ExecutionMode#VIRTUAL} mode blocking work (stat, open, read,
+ * copy, attribute and cache lookups) runs on virtual threads, so thousands of
+ * requests can be outstanding against network storage, while the digest
+ * updates between the reads take a permit first, so no more of them run at
+ * once than there are cores, less one left for the threads doing I/O.
+ */
+@Slf4j
+public class TaskExecutors {
+
+    /**
+     * Which threads the I/O work runs on.
+     */
+    public enum ExecutionMode {
+        /** Platform threads, sized by the thread counts */
+        PLATFORM,
+
+        /** Virtual threads for I/O, digest updates limited to the cores */
+        VIRTUAL
+    }
+
+    /** Lowest number of workers of an I/O stage in VIRTUAL mode */
+    public static final int VIRTUAL_IO_CONCURRENCY = 256;
+
+    private static final int CPU_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static volatile ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    // Pieces of CPU bound work running at once on virtual threads
+    private static final Semaphore CPU_PERMITS = new Semaphore(Math.max(1, CPU_THREADS - 1));
+
+    /**
+     * A piece of CPU bound work, such as hashing one buffer.
+     */
+    @FunctionalInterface
+    public interface CpuWork<T> {
+        T call() throws IOException;
+    }
+
+    public static ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public static void setExecutionMode(ExecutionMode mode) {
+        executionMode = mode;
+    }
+
+    /**
+     * @param threadCount The configured number of threads
+     * @return The number of workers for a stage doing blocking I/O
+     */
+    public static int ioWorkers(int threadCount) {
+        return executionMode == ExecutionMode.VIRTUAL ? Math.max(threadCount, VIRTUAL_IO_CONCURRENCY) : threadCount;
+    }
+
+    /**
+     * Creates an unstarted worker thread.
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (executionMode == ExecutionMode.VIRTUAL) {
+            return Thread.ofVirtual().name(name).unstarted(task);
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * Creates an executor for blocking I/O tasks: a thread per task in VIRTUAL
+     * mode, else a fixed pool.
+     */
+    public static ExecutorService newIoExecutor(int threadCount) {
+        if (executionMode == ExecutionMode.VIRTUAL) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(threadCount);
+    }
+
+    /**
+     * Runs an I/O bound action for every item and waits for all of them: on
+     * a parallel stream, or on a virtual thread per item in VIRTUAL mode.
+     */
+    public static <T> void forEach(Collection<T> items, Consumer<T> action) {
+        if (executionMode != ExecutionMode.VIRTUAL) {
+            items.parallelStream().forEach(action);
+            return;
+        }
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<Future<?>>(items.size());
+            for (T item : items) {
+                futures.add(executor.submit(() -> action.accept(item)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("Task failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a piece of CPU bound work. Called from a virtual thread in VIRTUAL
+     * mode, it waits for one of the CPU permits first, so the virtual thread
+     * holds a carrier for the work only, never for the I/O around it;
+     * otherwise it runs right away.
+     */
+    public static <T> T cpuBound(CpuWork<T> work) throws IOException {
+        if (executionMode != ExecutionMode.VIRTUAL || !Thread.currentThread().isVirtual()) {
+            return work.call();
+        }
+
+        try {
+            CPU_PERMITS.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a CPU permit", e);
+        }
+        try {
+            return work.call();
+        } finally {
+            CPU_PERMITS.release();
+        }
+    }
+
+    /**
+     * Feeds bytes read from a file to a digest, as CPU bound work.
+     */
+    public static void update(MessageDigest digest, byte[] input, int offset, int length) throws IOException {
+        cpuBound(() -> {
+            digest.update(input, offset, length);
+            return null;
+        });
+    }
+
+    /**
+     * Feeds the remaining bytes of a buffer to a digest, as CPU bound work.
+     */
+    public static void update(MessageDigest digest, ByteBuffer input) throws IOException {
+        cpuBound(() -> {
+            digest.update(input);
+            return null;
+        });
+    }
+}
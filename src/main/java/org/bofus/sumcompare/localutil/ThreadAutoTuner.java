@@ -0,0 +1,125 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adjusts the concurrency of pipeline stages while they run, by hill
+ * climbing on their measured throughput.
+ * <p>
+ * Every {@link #SAMPLE_INTERVAL_MS} the throughput of each stage is sampled
+ * (bytes per second where the stage counts bytes, else files per second) and
+ * compared with the previous sample. While throughput improves, concurrency
+ * keeps moving in the same direction; when it drops, the direction reverses;
+ * when it stays flat, concurrency is lowered, since the same throughput with
+ * fewer threads means the storage is saturated. Concurrency thus settles
+ * around the knee of the throughput curve and follows it when the load
+ * changes. Stages that are starved (nothing queued) are left alone, as more
+ * workers could not help them.
+ */
+@Slf4j
+public class ThreadAutoTuner implements Closeable {
+
+    /** Time between throughput samples */
+    public static final long SAMPLE_INTERVAL_MS = 2000;
+
+    // Relative change in throughput treated as noise
+    private static final double TOLERANCE = 0.05;
+
+    private final List<TunedStage> stages = new ArrayList<TunedStage>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sumcompare-autotune");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class TunedStage {
+        private final PipelineStage<?> stage;
+        private final int initialConcurrency;
+        private long lastCount;
+        private long lastBytes;
+        private double lastThroughput = -1;
+        private int direction = 1;
+
+        private TunedStage(PipelineStage<?> stage) {
+            this.stage = stage;
+            this.initialConcurrency = stage.getConcurrency();
+        }
+    }
+
+    /**
+     * Tunes a stage, starting from its current concurrency.
+     */
+    public ThreadAutoTuner add(PipelineStage<?> stage) {
+        stages.add(new TunedStage(stage));
+        return this;
+    }
+
+    public ThreadAutoTuner start() {
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stops tuning and logs the concurrency chosen for each stage.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (TunedStage tuned : stages) {
+            log.info("Auto-tuned {} concurrency: {} (started at {}, at most {})", tuned.stage.getName(),
+                    tuned.stage.getConcurrency(), tuned.initialConcurrency, tuned.stage.getWorkerCount());
+        }
+    }
+
+    private synchronized void sample() {
+        for (TunedStage tuned : stages) {
+            try {
+                tune(tuned);
+            } catch (RuntimeException e) {
+                log.warn("Auto-tuning the {} stage failed: {}", tuned.stage.getName(), e.toString());
+            }
+        }
+    }
+
+    private void tune(TunedStage tuned) {
+        PipelineStage<?> stage = tuned.stage;
+        long count = stage.getProcessedCount();
+        long bytes = stage.getProcessedBytes();
+        long countDelta = count - tuned.lastCount;
+        long bytesDelta = bytes - tuned.lastBytes;
+        tuned.lastCount = count;
+        tuned.lastBytes = bytes;
+
+        // A starved stage says nothing about its best concurrency
+        if (countDelta == 0 || stage.getQueuedCount() == 0) {
+            tuned.lastThroughput = -1;
+            return;
+        }
+
+        double seconds = SAMPLE_INTERVAL_MS / 1000.0;
+        double throughput = (bytes > 0 ? bytesDelta : countDelta) / seconds;
+        int concurrency = stage.getConcurrency();
+        if (tuned.lastThroughput < 0) {
+            // First useful sample: probe upwards
+            tuned.direction = 1;
+        } else if (throughput < tuned.lastThroughput * (1 - TOLERANCE)) {
+            tuned.direction = -tuned.direction;
+        } else if (throughput <= tuned.lastThroughput * (1 + TOLERANCE)) {
+            tuned.direction = -1;
+        }
+        tuned.lastThroughput = throughput;
+
+        int step = Math.max(1, concurrency / 4);
+        stage.setConcurrency(concurrency + tuned.direction * step);
+        log.debug("{} stage: {}/s with {} workers, now {}", stage.getName(),
+                bytes > 0 ? String.format("%.1f MB", throughput / (1024 * 1024)) : String.format("%.0f files", throughput),
+                concurrency, stage.getConcurrency());
+    }
+}
@@ -0,0 +1,391 @@
+package org.bofus.sumcompare.localutil;
+
+import java.beans.PropertyVetoException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bofus.sumcompare.singletons.CopiedFileHashMapSingleton;
+import org.bofus.sumcompare.singletons.CopiedFileSizeMapSingleton;
+import org.bofus.sumcompare.singletons.TargetFileArraySingleton;
+import org.bofus.sumcompare.singletons.TargetFileFingerprintMapSingleton;
+import org.bofus.sumcompare.singletons.TargetFileHashMapSingleton;
+import org.bofus.sumcompare.singletons.TargetFileSizeMapSingleton;
+
+import lombok.extern.slf4j.Slf4j;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Tiered (progressive) comparison of files against the target.
+ * <p>
+ * Tier 0 is the file size, tier 1 a cheap fingerprint made of the size and an
+ * XXHash64 of the first and last {@link #SAMPLE_SIZE} bytes, and tier 2 the
+ * full {@link MessageDigest} checksum. A tier is only computed when the
+ * previous tier collides, and target files are promoted to full checksums in
+ * {@link org.bofus.sumcompare.singletons.TargetFileHashMapSingleton} lazily,
+ * the first time a source fingerprint matches them.
+ * <p>
+ * Source files copied during the run are claimed the same way, so identical
+ * source files are copied once: the first copy of a size is not hashed, and
+ * the copies of a size are only hashed into
+ * {@link org.bofus.sumcompare.singletons.TargetFileHashMapSingleton} once a
+ * second source file of that size is about to be copied.
+ * <p>
+ * Every file read waits for a slot on the device of that file (see
+ * {@link IoScheduler}), and holds it only for that read, so a source file
+ * looked up does not hold its device while target files are read.
+ */
+@Slf4j
+public class TieredChecksumEngine {
+
+    /** Bytes sampled from the head and from the tail of a file */
+    public static final int SAMPLE_SIZE = 65536;
+
+    /**
+     * Files up to this size are read completely by the sample anyway, so they go
+     * straight from the size tier to the full checksum.
+     */
+    public static final long FULL_HASH_THRESHOLD = 2L * SAMPLE_SIZE;
+
+    private static final long SEED = 0;
+    private static final XXHash64 XXHASH64 = XXHashFactory.fastestInstance().hash64();
+    private static final ThreadLocal<byte[]> SAMPLE_BUFFER = ThreadLocal.withInitial(() -> new byte[SAMPLE_SIZE]);
+
+    // Locks of the size and fingerprint buckets being fingerprinted or
+    // promoted, dropped once done. Files are read while holding them, so they
+    // are ReentrantLocks: a virtual thread blocked on one does not pin its
+    // carrier, as it would in a synchronized block
+    private static final Map<Object, ReentrantLock> BUCKET_LOCKS = new ConcurrentHashMap<Object, ReentrantLock>();
+
+    /**
+     * Computes the tier 1 fingerprint of a file. For files no larger than
+     * {@link #FULL_HASH_THRESHOLD} the fingerprint is the size alone and nothing
+     * is read. When the {@link ChecksumCache} is enabled, fingerprints of
+     * unchanged files are served from it.
+     *
+     * @param file The file to fingerprint
+     * @param size The length of the file, as recorded during the directory walk
+     * @return The fingerprint string
+     * @throws IOException if the file cannot be read
+     */
+    public static String getFileFingerprint(File file, long size) throws IOException {
+        if (size <= FULL_HASH_THRESHOLD) {
+            return Long.toHexString(size);
+        }
+
+        Path path = file.toPath();
+        BasicFileAttributes attrs = null;
+        if (ChecksumCache.isEnabled()) {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            byte[] cached = ChecksumCache.lookup(ChecksumCache.FINGERPRINT, path, attrs);
+            if (cached != null) {
+                return String.format("%x:%016x", size, FileUtilsLocal.digestToLong(cached));
+            }
+        }
+
+        byte[] sample = SAMPLE_BUFFER.get();
+        long hash;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int headLength = readFully(channel, sample, 0);
+            hash = XXHASH64.hash(sample, 0, headLength, SEED);
+            FileTypeDetector.offerHead(file.getPath(), sample, headLength);
+
+            int tailLength = readFully(channel, sample, size - SAMPLE_SIZE);
+            hash = XXHASH64.hash(sample, 0, tailLength, hash);
+        }
+
+        if (attrs != null) {
+            ChecksumCache.store(ChecksumCache.FINGERPRINT, path, attrs,
+                    ByteBuffer.allocate(Long.BYTES).putLong(hash).array());
+        }
+        return String.format("%x:%016x", size, hash);
+    }
+
+    /**
+     * Returns the full checksum of a source file if, and only if, some target
+     * file could have the same content. Target files sharing the source size are
+     * fingerprinted on first use, and target files sharing the source fingerprint
+     * are promoted to full checksums before returning.
+     *
+     * @param digest The digest to use (not shared with other threads)
+     * @param file   The source file
+     * @param size   The length of the source file
+     * @return The full checksum bytes, or null when no target file can match
+     */
+    public static byte[] getCandidateDigest(MessageDigest digest, File file, long size)
+            throws IOException, SQLException, PropertyVetoException {
+        if (!TargetFileSizeMapSingleton.getInstance().containsSize(size)) {
+            return null;
+        }
+
+        fingerprintTargetSize(size);
+
+        String fingerprint = onDevice(file, () -> getFileFingerprint(file, size));
+        if (!TargetFileFingerprintMapSingleton.getInstance().getMap().containsKey(fingerprint)) {
+            log.trace("Fingerprint {} of {} not present in target, skipping full checksum", fingerprint,
+                    file.getName());
+            return null;
+        }
+
+        promoteTargetFingerprint(fingerprint, digest);
+        return onDevice(file, () -> FileUtilsLocal.getFileDigest(digest, file));
+    }
+
+    /**
+     * Claims the size of a source file that is about to be copied and that no
+     * target file can match. The first copy of a size is recorded without a
+     * checksum; for any later one, the copies claimed earlier with this size
+     * are hashed into {@link TargetFileHashMapSingleton} under their target
+     * paths, and the full checksum of this file is returned, so the caller can
+     * claim its content or find it already copied.
+     *
+     * @param digest     The digest to use (not shared with other threads)
+     * @param file       The source file
+     * @param size       The length of the source file
+     * @param targetPath The path the file is copied to
+     * @return The full checksum, or null when this is the first copy of its size
+     */
+    public static byte[] claimCopySize(MessageDigest digest, File file, long size, String targetPath)
+            throws IOException, SQLException, PropertyVetoException {
+        CopiedFileSizeMapSingleton copiedSizes = CopiedFileSizeMapSingleton.getInstance();
+        if (copiedSizes.claimSize(size, file.getPath(), targetPath)) {
+            return null;
+        }
+
+        List<String[]> unhashed = copiedSizes.getMap().get(size);
+        ReentrantLock lock = copiedSizes.getLock(size);
+        lock.lock();
+        try {
+            for (String[] claim : unhashed) {
+                try {
+                    File claimed = new File(claim[0]);
+                    byte[] checksum = onDevice(claimed, () -> FileUtilsLocal.getFileDigest(digest, claimed));
+                    if (TargetFileHashMapSingleton.getInstance().putIfAbsent(checksum, claim[1]) == null) {
+                        // Kept with the copy, so the claim can be undone if the copy fails
+                        CopiedFileHashMapSingleton.getInstance().setPendingChecksum(claim[1], checksum);
+                    }
+                } catch (IOException e) {
+                    log.error("Error computing checksum for source file: " + claim[0], e);
+                }
+            }
+            unhashed.clear();
+        } finally {
+            lock.unlock();
+        }
+        return onDevice(file, () -> FileUtilsLocal.getFileDigest(digest, file));
+    }
+
+    /**
+     * Fingerprints every target file of the given size and fully hashes those
+     * whose fingerprints collide with each other, so that existing duplicates
+     * inside the target are recorded.
+     *
+     * @param size   The size bucket to resolve
+     * @param digest The digest to use (not shared with other threads)
+     */
+    public static void resolveTargetDuplicates(long size, MessageDigest digest)
+            throws IOException, SQLException, PropertyVetoException {
+        TargetFileFingerprintMapSingleton fingerprints = TargetFileFingerprintMapSingleton.getInstance();
+        for (String fingerprint : fingerprintTargetSize(size)) {
+            if (fingerprints.getMap().get(fingerprint).size() > 1) {
+                promoteTargetFingerprint(fingerprint, digest);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #resolveTargetDuplicates} for every given size, but in two
+     * passes over all of their files, each read in {@link PhysicalOrder}: first
+     * every file is fingerprinted, then every file whose fingerprint collides
+     * is fully hashed. Must not run concurrently with other lookups.
+     *
+     * @param sizes  The size buckets to resolve
+     * @param digest The digest to clone for each reader
+     */
+    public static void resolveTargetDuplicatesInPhysicalOrder(List<Long> sizes, MessageDigest digest)
+            throws IOException, SQLException, PropertyVetoException {
+        TargetFileFingerprintMapSingleton fingerprints = TargetFileFingerprintMapSingleton.getInstance();
+        PathStore targetFiles = TargetFileArraySingleton.getInstance().getArray();
+        // The files not fingerprinted yet, by id, and their sizes
+        List<int[]> buckets = new ArrayList<int[]>();
+        List<Long> bucketSizes = new ArrayList<Long>();
+        int count = 0;
+        for (Long size : sizes) {
+            if (!fingerprints.getFingerprintedSizes().contains(size)) {
+                int[] bucket = TargetFileSizeMapSingleton.getInstance().getMap().get(size).toIdArray();
+                buckets.add(bucket);
+                bucketSizes.add(size);
+                count += bucket.length;
+            }
+        }
+        int[] ids = new int[count];
+        long[] sizeOf = new long[count];
+        int filled = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            int[] bucket = buckets.get(i);
+            System.arraycopy(bucket, 0, ids, filled, bucket.length);
+            Arrays.fill(sizeOf, filled, filled + bucket.length, bucketSizes.get(i));
+            filled += bucket.length;
+        }
+
+        String[] fingerprintOf = new String[ids.length];
+        PhysicalOrder.forEach(targetFiles, ids, (index, targetFile) -> {
+            try {
+                File file = new File(targetFile);
+                String fingerprint = onDevice(file, () -> getFileFingerprint(file, sizeOf[index]));
+                fingerprints.addToMap(fingerprint, ids[index]);
+                fingerprintOf[index] = fingerprint;
+            } catch (IOException e) {
+                log.error("Error fingerprinting target file: " + targetFile, e);
+            }
+        });
+        fingerprints.getFingerprintedSizes().addAll(sizes);
+
+        PathStore.IdList colliding = targetFiles.newIdList();
+        Set<String> promoted = new HashSet<String>();
+        for (int i = 0; i < ids.length; i++) {
+            String fingerprint = fingerprintOf[i];
+            if (fingerprint != null && fingerprints.getMap().get(fingerprint).size() > 1
+                    && !fingerprints.getPromotedFingerprints().contains(fingerprint)) {
+                colliding.addId(ids[i]);
+                promoted.add(fingerprint);
+            }
+        }
+
+        ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        int[] collidingIds = colliding.toIdArray();
+        PhysicalOrder.forEach(targetFiles, collidingIds, (index, targetFile) -> {
+            try {
+                File file = new File(targetFile);
+                byte[] checksum = onDevice(file, () -> FileUtilsLocal.getFileDigest(digests.get(), file));
+                FileUtilsLocal.registerTargetChecksum(checksum, collidingIds[index]);
+            } catch (IOException | SQLException | PropertyVetoException e) {
+                log.error("Error computing checksum for target file: " + targetFile, e);
+            }
+        });
+        fingerprints.getPromotedFingerprints().addAll(promoted);
+    }
+
+    /**
+     * Fingerprints all target files of the given size, once.
+     *
+     * @return The fingerprints added by this call (empty if already done)
+     */
+    private static Set<String> fingerprintTargetSize(long size)
+            throws IOException, SQLException, PropertyVetoException {
+        TargetFileFingerprintMapSingleton fingerprints = TargetFileFingerprintMapSingleton.getInstance();
+        Set<String> added = new HashSet<String>();
+        if (fingerprints.getFingerprintedSizes().contains(size)) {
+            return added;
+        }
+
+        PathStore targetFiles = TargetFileArraySingleton.getInstance().getArray();
+        PathStore.IdList sizeBucket = TargetFileSizeMapSingleton.getInstance().getMap().get(size);
+        ReentrantLock lock = BUCKET_LOCKS.computeIfAbsent(size, key -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (fingerprints.getFingerprintedSizes().contains(size)) {
+                return added;
+            }
+            for (int fileId : sizeBucket.toIdArray()) {
+                String targetFile = targetFiles.get(fileId);
+                try {
+                    File file = new File(targetFile);
+                    String fingerprint = onDevice(file, () -> getFileFingerprint(file, size));
+                    fingerprints.addToMap(fingerprint, fileId);
+                    added.add(fingerprint);
+                } catch (IOException e) {
+                    log.error("Error fingerprinting target file: " + targetFile, e);
+                }
+            }
+            fingerprints.getFingerprintedSizes().add(size);
+        } finally {
+            BUCKET_LOCKS.remove(size, lock);
+            lock.unlock();
+        }
+        return added;
+    }
+
+    /**
+     * Computes the full checksum of every target file sharing a fingerprint,
+     * once.
+     */
+    private static void promoteTargetFingerprint(String fingerprint, MessageDigest digest)
+            throws IOException, SQLException, PropertyVetoException {
+        TargetFileFingerprintMapSingleton fingerprints = TargetFileFingerprintMapSingleton.getInstance();
+        if (fingerprints.getPromotedFingerprints().contains(fingerprint)) {
+            return;
+        }
+
+        PathStore targetFiles = TargetFileArraySingleton.getInstance().getArray();
+        PathStore.IdList bucket = fingerprints.getMap().get(fingerprint);
+        ReentrantLock lock = BUCKET_LOCKS.computeIfAbsent(fingerprint, key -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (fingerprints.getPromotedFingerprints().contains(fingerprint)) {
+                return;
+            }
+            for (int fileId : bucket.toIdArray()) {
+                String targetFile = targetFiles.get(fileId);
+                try {
+                    File file = new File(targetFile);
+                    byte[] checksum = onDevice(file, () -> FileUtilsLocal.getFileDigest(digest, file));
+                    FileUtilsLocal.registerTargetChecksum(checksum, fileId);
+                } catch (IOException e) {
+                    log.error("Error computing checksum for target file: " + targetFile, e);
+                }
+            }
+            fingerprints.getPromotedFingerprints().add(fingerprint);
+        } finally {
+            BUCKET_LOCKS.remove(fingerprint, lock);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a file once its device has a free slot.
+     */
+    private static <T> T onDevice(File file, Callable<T> read) throws IOException {
+        try {
+            return IoScheduler.run(file.toPath(), read);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int readFully(FileChannel channel, byte[] buffer, long position) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (byteBuffer.hasRemaining()) {
+            int read = channel.read(byteBuffer, position + byteBuffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        return byteBuffer.position();
+    }
+}
@@ -0,0 +1,238 @@
+package org.bofus.sumcompare.localutil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.dynatrace.hash4j.hashing.HashStream128;
+import com.dynatrace.hash4j.hashing.HashValue128;
+import com.dynatrace.hash4j.hashing.Hashing;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Chunked XXH3 tree hash ("XXH3-TREE").
+ * <p>
+ * Content is split into fixed {@link #CHUNK_SIZE} chunks. Each chunk is hashed
+ * with XXH3-128 (the leaves) and the root is the XXH3-128 of all leaf hashes,
+ * in order, followed by the total length. Because leaves are independent, a
+ * large file can be hashed with every chunk on a different ForkJoin worker
+ * through {@link #digestFile(Path)}, which gives exactly the same result as
+ * streaming the content through {@link #update(byte[], int, int)}.
+ */
+@Slf4j
+public class TreeHashMessageDigest extends MessageDigest {
+
+    public static final String XXH3_TREE = "XXH3-TREE";
+
+    /** Size of a leaf; part of the hash definition, do not change */
+    public static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // Files are read in pieces of at most this size, allocated per file (or
+    // per chunk), so no thread keeps a buffer; leaves are hashed as streams,
+    // so a chunk never has to be held in memory at once
+    private static final int READ_SIZE = 1 << 20;
+
+    private final HashStream128 leafStream = Hashing.xxh3_128().hashStream();
+    private final HashStream128 rootStream = Hashing.xxh3_128().hashStream();
+    private final byte[] leafBytes = new byte[16];
+    private final byte[] singleByte = new byte[1];
+    private byte[] scratch;
+    private int chunkFill;
+    private long totalLength;
+
+    public TreeHashMessageDigest() {
+        super(XXH3_TREE);
+    }
+
+    /**
+     * Hashes a whole file, computing the leaves of files larger than two chunks
+     * in parallel on the common ForkJoin pool.
+     *
+     * @param path The file to hash
+     * @return The digest (the digest is reset afterwards)
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] digestFile(Path path) throws IOException {
+        engineReset();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= 2L * CHUNK_SIZE) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(size, READ_SIZE)));
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    TaskExecutors.update(this, buffer.array(), 0, buffer.limit());
+                    buffer.clear();
+                }
+                return engineDigest();
+            }
+
+            int chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            long[] leaves = new long[chunkCount * 2];
+            try {
+                ForkJoinPool.commonPool().invoke(new LeafTask(channel, size, leaves, 0, chunkCount));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            log.trace("Tree hashed {} chunks of {} in parallel", chunkCount, path.getFileName());
+
+            for (int i = 0; i < chunkCount; i++) {
+                putLong(leafBytes, 0, leaves[2 * i]);
+                putLong(leafBytes, 8, leaves[2 * i + 1]);
+                rootStream.putBytes(leafBytes, 0, 16);
+            }
+            totalLength = size;
+            return engineDigest();
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        singleByte[0] = input;
+        engineUpdate(singleByte, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        totalLength += len;
+        while (len > 0) {
+            int toChunk = Math.min(len, CHUNK_SIZE - chunkFill);
+            leafStream.putBytes(input, offset, toChunk);
+            chunkFill += toChunk;
+            offset += toChunk;
+            len -= toChunk;
+            if (chunkFill == CHUNK_SIZE) {
+                finishLeaf();
+            }
+        }
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (input.hasArray()) {
+            int len = input.remaining();
+            engineUpdate(input.array(), input.arrayOffset() + input.position(), len);
+            input.position(input.limit());
+            return;
+        }
+
+        // hash4j streams only accept arrays
+        if (scratch == null) {
+            scratch = new byte[65536];
+        }
+        while (input.hasRemaining()) {
+            int len = Math.min(input.remaining(), scratch.length);
+            input.get(scratch, 0, len);
+            engineUpdate(scratch, 0, len);
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (chunkFill > 0) {
+            finishLeaf();
+        }
+        byte[] lengthBytes = new byte[8];
+        putLong(lengthBytes, 0, totalLength);
+        rootStream.putBytes(lengthBytes, 0, 8);
+
+        HashValue128 root = rootStream.get();
+        byte[] result = new byte[16];
+        putLong(result, 0, root.getMostSignificantBits());
+        putLong(result, 8, root.getLeastSignificantBits());
+        engineReset();
+        return result;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineReset() {
+        leafStream.reset();
+        rootStream.reset();
+        chunkFill = 0;
+        totalLength = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return new TreeHashMessageDigest();
+    }
+
+    private void finishLeaf() {
+        HashValue128 leaf = leafStream.get();
+        putLong(leafBytes, 0, leaf.getMostSignificantBits());
+        putLong(leafBytes, 8, leaf.getLeastSignificantBits());
+        rootStream.putBytes(leafBytes, 0, 16);
+        leafStream.reset();
+        chunkFill = 0;
+    }
+
+    private static void putLong(byte[] target, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            target[offset + i] = (byte) (value & 0xFF);
+            value >>= 8;
+        }
+    }
+
+    /**
+     * Hashes a range of chunks, splitting until a single chunk is left.
+     */
+    private static class LeafTask extends RecursiveAction {
+        private final FileChannel channel;
+        private final long size;
+        private final long[] leaves;
+        private final int from;
+        private final int to;
+
+        LeafTask(FileChannel channel, long size, long[] leaves, int from, int to) {
+            this.channel = channel;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, size, leaves, from, middle),
+                        new LeafTask(channel, size, leaves, middle, to));
+                return;
+            }
+
+            long position = (long) from * CHUNK_SIZE;
+            long end = Math.min(position + CHUNK_SIZE, size);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, end - position));
+            HashStream128 leafStream = Hashing.xxh3_128().hashStream();
+            try {
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of file while tree hashing");
+                    }
+                    leafStream.putBytes(buffer.array(), 0, read);
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            HashValue128 leaf = leafStream.get();
+            leaves[2 * from] = leaf.getMostSignificantBits();
+            leaves[2 * from + 1] = leaf.getLeastSignificantBits();
+        }
+    }
+}
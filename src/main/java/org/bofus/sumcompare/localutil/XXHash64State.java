@@ -0,0 +1,189 @@
+package org.bofus.sumcompare.localutil;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64 state that reads stripes directly from the caller's byte
+ * array or ByteBuffer (heap, direct or mapped) instead of staging them in an
+ * intermediate buffer. Only the partial stripe at the edge of an update is
+ * copied, into a 32 byte array owned by the state.
+ * <p>
+ * The result is identical to lz4-java's {@code XXHash64} for the same seed.
+ * Instances are not thread-safe and are reused through {@link #reset()}.
+ */
+final class XXHash64State {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE = 32;
+
+    private static final VarHandle ARRAY_LONG = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ARRAY_INT = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUFFER_LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final long seed;
+    private final byte[] memory = new byte[STRIPE];
+    private int memorySize;
+    private long totalLength;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    XXHash64State(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    void reset() {
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+        memorySize = 0;
+        totalLength = 0;
+    }
+
+    void update(byte[] input, int offset, int length) {
+        totalLength += length;
+
+        if (memorySize + length < STRIPE) {
+            System.arraycopy(input, offset, memory, memorySize, length);
+            memorySize += length;
+            return;
+        }
+
+        int end = offset + length;
+        if (memorySize > 0) {
+            int fill = STRIPE - memorySize;
+            System.arraycopy(input, offset, memory, memorySize, fill);
+            processStripe(memory, 0);
+            offset += fill;
+            memorySize = 0;
+        }
+
+        int limit = end - STRIPE;
+        while (offset <= limit) {
+            processStripe(input, offset);
+            offset += STRIPE;
+        }
+
+        if (offset < end) {
+            memorySize = end - offset;
+            System.arraycopy(input, offset, memory, 0, memorySize);
+        }
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer, leaving its position at its
+     * limit.
+     */
+    void update(ByteBuffer input) {
+        if (input.hasArray()) {
+            int length = input.remaining();
+            update(input.array(), input.arrayOffset() + input.position(), length);
+            input.position(input.limit());
+            return;
+        }
+
+        int offset = input.position();
+        int end = input.limit();
+        totalLength += end - offset;
+
+        if (memorySize + (end - offset) < STRIPE) {
+            input.get(memory, memorySize, end - offset);
+            memorySize += end - offset;
+            return;
+        }
+
+        if (memorySize > 0) {
+            int fill = STRIPE - memorySize;
+            input.get(offset, memory, memorySize, fill);
+            processStripe(memory, 0);
+            offset += fill;
+            memorySize = 0;
+        }
+
+        int limit = end - STRIPE;
+        while (offset <= limit) {
+            v1 = round(v1, (long) BUFFER_LONG.get(input, offset));
+            v2 = round(v2, (long) BUFFER_LONG.get(input, offset + 8));
+            v3 = round(v3, (long) BUFFER_LONG.get(input, offset + 16));
+            v4 = round(v4, (long) BUFFER_LONG.get(input, offset + 24));
+            offset += STRIPE;
+        }
+
+        if (offset < end) {
+            memorySize = end - offset;
+            input.get(offset, memory, 0, memorySize);
+        }
+        input.position(end);
+    }
+
+    long getValue() {
+        long hash;
+        if (totalLength >= STRIPE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                    + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += totalLength;
+
+        int offset = 0;
+        while (offset + 8 <= memorySize) {
+            hash ^= round(0, (long) ARRAY_LONG.get(memory, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            offset += 8;
+        }
+        if (offset + 4 <= memorySize) {
+            hash ^= ((int) ARRAY_INT.get(memory, offset) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        while (offset < memorySize) {
+            hash ^= (memory[offset] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            offset++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private void processStripe(byte[] input, int offset) {
+        v1 = round(v1, (long) ARRAY_LONG.get(input, offset));
+        v2 = round(v2, (long) ARRAY_LONG.get(input, offset + 8));
+        v3 = round(v3, (long) ARRAY_LONG.get(input, offset + 16));
+        v4 = round(v4, (long) ARRAY_LONG.get(input, offset + 24));
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME1 + PRIME4;
+    }
+}
@@ -1,96 +1,113 @@
 package org.bofus.sumcompare.localutil;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import net.jpountz.xxhash.StreamingXXHash32;
-import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHash64;
 import net.jpountz.xxhash.XXHashFactory;
 
 /**
  * Custom MessageDigest implementation for XXHash algorithms.
  * This wrapper allows XXHash to be used with the existing MessageDigest-based
  * infrastructure.
+ * <p>
+ * Input is hashed in place: arrays and ByteBuffers (including direct and
+ * memory-mapped buffers for XXHASH64) are passed straight to the hash without
+ * being staged in an intermediate buffer, and the streaming state is reused
+ * across files through {@link #reset()}.
  */
 public class XXHashMessageDigest extends MessageDigest {
     private final boolean is64Bit;
     private final XXHashFactory factory;
     private StreamingXXHash32 xxhash32;
-    private StreamingXXHash64 xxhash64;
-    private byte[] buffer;
-    private int bufferPos;
+    private XXHash64State xxhash64;
+    private final byte[] singleByte = new byte[1];
+    private byte[] scratch;
     private static final int SEED = 0; // Default seed value
-    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int SCRATCH_SIZE = 65536;
+    private static final XXHash64 ONE_SHOT_XXHASH64 = XXHashFactory.fastestInstance().hash64();
 
     /**
      * Create a new XXHash MessageDigest.
-     * 
+     *
      * @param algorithm Either "XXHASH32" or "XXHASH64"
      */
     public XXHashMessageDigest(String algorithm) {
         super(algorithm);
         this.factory = XXHashFactory.fastestInstance();
         this.is64Bit = algorithm.equals("XXHASH64");
-        this.buffer = new byte[INITIAL_BUFFER_SIZE];
-        this.bufferPos = 0;
 
         if (is64Bit) {
-            xxhash64 = factory.newStreamingHash64(SEED);
+            xxhash64 = new XXHash64State(SEED);
         } else {
             xxhash32 = factory.newStreamingHash32(SEED);
         }
     }
 
+    /**
+     * @return true for XXHASH64, false for XXHASH32
+     */
+    public boolean is64Bit() {
+        return is64Bit;
+    }
+
+    /**
+     * One-shot XXHASH64 of the remaining bytes of a buffer, for content that
+     * fits in a single (direct or mapped) buffer. Gives the same value as
+     * streaming the bytes through an XXHASH64 digest, without any streaming
+     * state. The buffer position is left at its limit.
+     *
+     * @param buffer The content to hash
+     * @return The 8 byte digest
+     */
+    public static byte[] digest64(ByteBuffer buffer) {
+        long hash = ONE_SHOT_XXHASH64.hash(buffer, buffer.position(), buffer.remaining(), SEED);
+        buffer.position(buffer.limit());
+        return toBytes(hash);
+    }
+
     @Override
     protected void engineUpdate(byte input) {
-        buffer[bufferPos++] = input;
-        if (bufferPos >= buffer.length) {
-            flushBuffer();
-        }
+        singleByte[0] = input;
+        engineUpdate(singleByte, 0, 1);
     }
 
     @Override
     protected void engineUpdate(byte[] input, int offset, int len) {
-        int remaining = len;
-        int currentOffset = offset;
-
-        while (remaining > 0) {
-            int spaceInBuffer = buffer.length - bufferPos;
-            int toCopy = Math.min(remaining, spaceInBuffer);
-
-            System.arraycopy(input, currentOffset, buffer, bufferPos, toCopy);
-            bufferPos += toCopy;
-            currentOffset += toCopy;
-            remaining -= toCopy;
-
-            if (bufferPos >= buffer.length) {
-                flushBuffer();
-            }
+        if (is64Bit) {
+            xxhash64.update(input, offset, len);
+        } else {
+            xxhash32.update(input, offset, len);
         }
     }
 
-    private void flushBuffer() {
-        if (bufferPos > 0) {
-            if (is64Bit) {
-                xxhash64.update(buffer, 0, bufferPos);
-            } else {
-                xxhash32.update(buffer, 0, bufferPos);
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (is64Bit) {
+            xxhash64.update(input);
+        } else if (input.hasArray()) {
+            int len = input.remaining();
+            xxhash32.update(input.array(), input.arrayOffset() + input.position(), len);
+            input.position(input.limit());
+        } else {
+            // StreamingXXHash32 only accepts arrays
+            if (scratch == null) {
+                scratch = new byte[SCRATCH_SIZE];
+            }
+            while (input.hasRemaining()) {
+                int len = Math.min(input.remaining(), scratch.length);
+                input.get(scratch, 0, len);
+                xxhash32.update(scratch, 0, len);
             }
-            bufferPos = 0;
         }
     }
 
     @Override
     protected byte[] engineDigest() {
-        flushBuffer();
-
         if (is64Bit) {
             long hash = xxhash64.getValue();
-            byte[] result = new byte[8];
-            for (int i = 0; i < 8; i++) {
-                result[7 - i] = (byte) (hash & 0xFF);
-                hash >>= 8;
-            }
             engineReset();
-            return result;
+            return toBytes(hash);
         } else {
             int hash = xxhash32.getValue();
             byte[] result = new byte[4];
@@ -103,13 +120,17 @@ public class XXHashMessageDigest extends MessageDigest {
         }
     }
 
+    @Override
+    protected int engineGetDigestLength() {
+        return is64Bit ? 8 : 4;
+    }
+
     @Override
     protected void engineReset() {
-        bufferPos = 0;
         if (is64Bit) {
-            xxhash64 = factory.newStreamingHash64(SEED);
+            xxhash64.reset();
         } else {
-            xxhash32 = factory.newStreamingHash32(SEED);
+            xxhash32.reset();
         }
     }
 
@@ -117,4 +138,13 @@ public class XXHashMessageDigest extends MessageDigest {
     public Object clone() throws CloneNotSupportedException {
         return new XXHashMessageDigest(getAlgorithm());
     }
+
+    private static byte[] toBytes(long hash) {
+        byte[] result = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            result[7 - i] = (byte) (hash & 0xFF);
+            hash >>= 8;
+        }
+        return result;
+    }
 }
@@ -4,8 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -16,14 +16,19 @@ import lombok.Data;
 /**
  * Model class for storing file metadata information.
  * Captures creation time, modification time, size, and other file attributes.
+ * Times are kept as epoch milliseconds and only formatted when displayed; the
+ * owner is only looked up when asked for.
  */
 public class FileMetadata {
 
+    /** Time value of a timestamp that could not be read */
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
     private String filePath;
     private long sizeBytes;
-    private String creationTime;
-    private String lastModifiedTime;
-    private String lastAccessTime;
+    private long creationTimeMillis = UNKNOWN_TIME;
+    private long lastModifiedTimeMillis = UNKNOWN_TIME;
+    private long lastAccessTimeMillis = UNKNOWN_TIME;
     private boolean isReadOnly;
     private boolean isHidden;
     private boolean isDirectory;
@@ -40,45 +45,86 @@ public class FileMetadata {
      * @throws IOException if metadata cannot be read
      */
     public static FileMetadata fromFile(File file) throws IOException {
-        FileMetadata metadata = new FileMetadata();
-        metadata.setFilePath(file.getAbsolutePath());
-        metadata.setSizeBytes(file.length());
-        metadata.setDirectory(file.isDirectory());
-        metadata.setReadOnly(!file.canWrite());
-        metadata.setHidden(file.isHidden());
-
-        // Use NIO for more detailed attributes
         try {
             Path path = file.toPath();
-            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
-
-            metadata.setCreationTime(formatFileTime(attrs.creationTime()));
-            metadata.setLastModifiedTime(formatFileTime(attrs.lastModifiedTime()));
-            metadata.setLastAccessTime(formatFileTime(attrs.lastAccessTime()));
-
-            // Try to get owner (may not be available on all systems)
-            try {
-                metadata.setOwner(Files.getOwner(path).getName());
-            } catch (Exception e) {
-                metadata.setOwner("Unknown");
-            }
+            BasicFileAttributes attrs = FileRecord.readAttributes(path);
+            FileMetadata metadata = new FileMetadata();
+            metadata.setFilePath(file.getAbsolutePath());
+            metadata.setSizeBytes(attrs.size());
+            metadata.setDirectory(attrs.isDirectory());
+            metadata.setReadOnly(FileRecord.isReadOnly(path, attrs));
+            metadata.setHidden(FileRecord.isHidden(path, attrs));
+            metadata.setCreationTimeMillis(attrs.creationTime().toMillis());
+            metadata.setLastModifiedTimeMillis(attrs.lastModifiedTime().toMillis());
+            metadata.setLastAccessTimeMillis(attrs.lastAccessTime().toMillis());
+            return metadata;
         } catch (IOException e) {
             // Fallback to basic file methods
-            metadata.setCreationTime("Unknown");
-            metadata.setLastModifiedTime(formatTimestamp(file.lastModified()));
-            metadata.setLastAccessTime("Unknown");
+            FileMetadata metadata = new FileMetadata();
+            metadata.setFilePath(file.getAbsolutePath());
+            metadata.setSizeBytes(file.length());
+            metadata.setDirectory(file.isDirectory());
+            // Read-only comes from the file's attributes (see
+            // FileRecord.isReadOnly), which could not be read
+            metadata.setReadOnly(false);
+            metadata.setHidden(file.isHidden());
+            metadata.setLastModifiedTimeMillis(file.lastModified());
             metadata.setOwner("Unknown");
+            return metadata;
         }
+    }
 
+    /**
+     * Creates a FileMetadata object from a record taken during the directory
+     * walk, without touching the file.
+     * 
+     * @param record The file record
+     * @return FileMetadata object with populated attributes
+     */
+    public static FileMetadata fromRecord(FileRecord record) {
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFilePath(record.getPath());
+        metadata.setSizeBytes(record.getSize());
+        metadata.setDirectory(record.isDirectory());
+        metadata.setReadOnly(record.isReadOnly());
+        metadata.setHidden(record.isHidden());
+        metadata.setCreationTimeMillis(record.getCreationTime());
+        metadata.setLastModifiedTimeMillis(record.getLastModifiedTime());
+        metadata.setLastAccessTimeMillis(record.getLastAccessTime());
         return metadata;
     }
 
-    private static String formatFileTime(FileTime fileTime) {
-        Instant instant = fileTime.toInstant();
-        return FORMATTER.format(instant);
+    public String getCreationTime() {
+        return formatTimestamp(creationTimeMillis);
+    }
+
+    public String getLastModifiedTime() {
+        return formatTimestamp(lastModifiedTimeMillis);
+    }
+
+    public String getLastAccessTime() {
+        return formatTimestamp(lastAccessTimeMillis);
+    }
+
+    /**
+     * Returns the name of the file owner, looked up on first use (may not be
+     * available on all systems).
+     */
+    public String getOwner() {
+        if (owner == null) {
+            try {
+                owner = Files.getOwner(Paths.get(filePath)).getName();
+            } catch (Exception e) {
+                owner = "Unknown";
+            }
+        }
+        return owner;
     }
 
     private static String formatTimestamp(long timestamp) {
+        if (timestamp == UNKNOWN_TIME) {
+            return "Unknown";
+        }
         Instant instant = Instant.ofEpochMilli(timestamp);
         return FORMATTER.format(instant);
     }
@@ -104,7 +150,7 @@ public class FileMetadata {
     public String getSummary() {
         StringBuilder sb = new StringBuilder();
         sb.append("Size: ").append(getFormattedSize());
-        sb.append(" | Modified: ").append(lastModifiedTime);
+        sb.append(" | Modified: ").append(getLastModifiedTime());
         if (isReadOnly) {
             sb.append(" | Read-only");
         }
@@ -115,8 +161,8 @@ public class FileMetadata {
     public String toString() {
         return String.format(
                 "FileMetadata{path='%s', size=%s, created='%s', modified='%s', accessed='%s', owner='%s', readOnly=%s, hidden=%s}",
-                filePath, getFormattedSize(), creationTime, lastModifiedTime,
-                lastAccessTime, owner, isReadOnly, isHidden);
+                filePath, getFormattedSize(), getCreationTime(), getLastModifiedTime(),
+                getLastAccessTime(), getOwner(), isReadOnly, isHidden);
     }
 
 }
@@ -0,0 +1,129 @@
+package org.bofus.sumcompare.model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+
+import org.bofus.sumcompare.localutil.PathStore;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import lombok.Value;
+
+/**
+ * Immutable snapshot of a file's attributes, taken from a single attribute
+ * read (one {@code stat}) when the directory walk finds the file, and reused
+ * by every later stage instead of querying the file again.
+ * <p>
+ * The path is kept as its id in the {@link PathStore} of the walk, and only
+ * rebuilt when asked for. Times are epoch milliseconds; they are only
+ * formatted for display (see {@link FileMetadata}).
+ */
+@Value
+public class FileRecord {
+
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    PathStore paths;
+    int pathId;
+    long size;
+    long creationTime;
+    long lastModifiedTime;
+    long lastAccessTime;
+    // Device and inode where available (see BasicFileAttributes.fileKey())
+    Object fileKey;
+    boolean directory;
+    boolean readOnly;
+    boolean hidden;
+
+    /**
+     * @return The path of the file, rebuilt from the store
+     */
+    public String getPath() {
+        return paths.get(pathId);
+    }
+
+    /**
+     * Reads the attributes of a file, following symbolic links, and adds its
+     * path to the store.
+     *
+     * @param paths The store to add the path to
+     * @param path  The file
+     * @return The record
+     * @throws IOException if the attributes cannot be read
+     */
+    public static FileRecord read(PathStore paths, Path path) throws IOException {
+        BasicFileAttributes attrs = readAttributes(path);
+        return of(paths, paths.addPath(path.toString()), path, attrs);
+    }
+
+    /**
+     * Reads the POSIX attributes of a file where supported, else the DOS ones,
+     * else the basic ones, following symbolic links.
+     */
+    public static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class);
+        } catch (UnsupportedOperationException e) {
+            try {
+                return Files.readAttributes(path, DosFileAttributes.class);
+            } catch (UnsupportedOperationException notDos) {
+                return Files.readAttributes(path, BasicFileAttributes.class);
+            }
+        }
+    }
+
+    /**
+     * Builds the record from attributes already read. With
+     * {@link PosixFileAttributes} no further system call is made (see
+     * {@link #isReadOnly} and {@link #isHidden}).
+     *
+     * @param paths  The store holding the path
+     * @param pathId The id of the path in the store
+     * @param path   The file
+     * @param attrs  Its attributes
+     * @return The record
+     */
+    public static FileRecord of(PathStore paths, int pathId, Path path, BasicFileAttributes attrs)
+            throws IOException {
+        return new FileRecord(paths, pathId, attrs.size(), attrs.creationTime().toMillis(),
+                attrs.lastModifiedTime().toMillis(), attrs.lastAccessTime().toMillis(), attrs.fileKey(),
+                attrs.isDirectory(), isReadOnly(path, attrs), isHidden(path, attrs));
+    }
+
+    /**
+     * Read-only is a property of the file, not of the current user: no owner
+     * write permission with {@link PosixFileAttributes}, the read-only flag
+     * with {@link DosFileAttributes}. Only a file system with neither needs one
+     * more call, an access check.
+     */
+    public static boolean isReadOnly(Path path, BasicFileAttributes attrs) {
+        if (attrs instanceof PosixFileAttributes) {
+            return !((PosixFileAttributes) attrs).permissions().contains(PosixFilePermission.OWNER_WRITE);
+        }
+        if (attrs instanceof DosFileAttributes) {
+            return ((DosFileAttributes) attrs).isReadOnly();
+        }
+        return !Files.isWritable(path);
+    }
+
+    /**
+     * With {@link PosixFileAttributes}, hidden means a leading dot, with
+     * {@link DosFileAttributes} the hidden flag; other attribute types need
+     * one more call.
+     */
+    public static boolean isHidden(Path path, BasicFileAttributes attrs) throws IOException {
+        if (attrs instanceof PosixFileAttributes) {
+            Path name = path.getFileName();
+            return name != null && name.toString().startsWith(".");
+        }
+        if (attrs instanceof DosFileAttributes) {
+            return ((DosFileAttributes) attrs).isHidden();
+        }
+        return Files.isHidden(path);
+    }
+}
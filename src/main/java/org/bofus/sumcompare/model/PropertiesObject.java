@@ -1,6 +1,10 @@
 package org.bofus.sumcompare.model;
 
+import org.bofus.sumcompare.localutil.CopyEngine;
 import org.bofus.sumcompare.localutil.DateFolderOrganizer;
+import org.bofus.sumcompare.localutil.FileUtilsLocal;
+import org.bofus.sumcompare.localutil.TargetDeduplicator;
+import org.bofus.sumcompare.localutil.TaskExecutors;
 
 import lombok.Data;
 
@@ -29,4 +33,17 @@ public class PropertiesObject {
 	private boolean moveInsteadOfCopy;
 	private boolean permanentlyDelete;
 	private int threadCount;
+	private int copyThreadCount;
+	private int deviceConcurrency;
+	private boolean physicalOrder;
+	private boolean autoTune;
+	private FileUtilsLocal.HashReadMode hashReadMode;
+	private TaskExecutors.ExecutionMode executionMode;
+	private CopyEngine.CopyMethod copyMethod;
+	private TargetDeduplicator.DedupeMethod dedupeMethod;
+	private boolean useChecksumCache;
+	private boolean maintainIndex;
+	private boolean useXattrChecksums;
+	private boolean watchSource;
+	private boolean verifyCopies;
 }
@@ -0,0 +1,37 @@
+package org.bofus.sumcompare.model;
+
+import java.io.File;
+
+import org.bofus.sumcompare.localutil.FileTypeDetector;
+
+import lombok.Data;
+
+/**
+ * A source file on its way through the processing pipeline, filled in stage
+ * by stage: hashed, then matched against the target, then copied.
+ */
+@Data
+public class SourceFileObject {
+	private String sourceFileName;
+	private File sourceFile;
+	private FileMetadata metadata;
+	private String fileTypeDesc;
+	// First bytes of the file, kept by the hasher when the type needs sniffing
+	private byte[] fileHead;
+	// Null when no target file can have the same content
+	private byte[] checksum;
+	private File targetFile;
+	// The target path as claimed in the copied and target checksum maps
+	private String targetPath;
+
+	/**
+	 * @return The file type description, detected on first use
+	 */
+	public String getFileTypeDesc() {
+		if (fileTypeDesc == null) {
+			fileTypeDesc = FileTypeDetector.getFileTypeDescription(sourceFile, fileHead);
+			fileHead = null;
+		}
+		return fileTypeDesc;
+	}
+}
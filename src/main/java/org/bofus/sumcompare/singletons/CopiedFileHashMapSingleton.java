@@ -8,6 +8,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.bofus.sumcompare.model.SourceFileObject;
+
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -18,10 +20,32 @@ import lombok.extern.slf4j.Slf4j;
 public class CopiedFileHashMapSingleton {
         private static CopiedFileHashMapSingleton copiedFileHashMapSingleton;
         private ConcurrentHashMap<String, String> map = null;
+        // target path -> the source file that claimed it
+        private ConcurrentHashMap<String, String> targets = null;
+        // target path -> the copy being made there
+        private ConcurrentHashMap<String, PendingCopy> pending = null;
+
+        // A copy that has not finished yet, with the source files found to have
+        // the same content; they only count as duplicates once the copy succeeds
+        public static class PendingCopy {
+                private volatile byte[] checksum;
+                private final List<SourceFileObject> duplicates = new ArrayList<SourceFileObject>();
+
+                // The content claimed for the copy, or null if not hashed
+                public byte[] getChecksum() {
+                        return checksum;
+                }
+
+                public List<SourceFileObject> getDuplicates() {
+                        return duplicates;
+                }
+        }
 
         private CopiedFileHashMapSingleton() {
                 // Use ConcurrentHashMap for thread-safe operations
                 map = new ConcurrentHashMap<String, String>();
+                targets = new ConcurrentHashMap<String, String>();
+                pending = new ConcurrentHashMap<String, PendingCopy>();
 
         }
 
@@ -44,4 +68,50 @@ public class CopiedFileHashMapSingleton {
                 map.put(key, value);
         }
 
+        // Claims the target path for the source file, as one atomic step;
+        // returns the source file that claimed it earlier, or null if this call
+        // claimed it
+        public String claimTarget(String targetPath, String sourceFile) {
+                String earlier = targets.putIfAbsent(targetPath, sourceFile);
+                if (earlier == null) {
+                        map.put(sourceFile, targetPath);
+                }
+                return earlier;
+        }
+
+        // Gives up a claim made by claimTarget
+        public void releaseTarget(String targetPath, String sourceFile) {
+                if (targets.remove(targetPath, sourceFile)) {
+                        map.remove(sourceFile, targetPath);
+                }
+        }
+
+        // Records that a copy to the target path has started
+        public void startCopy(String targetPath) {
+                pending.put(targetPath, new PendingCopy());
+        }
+
+        // Records the checksum claimed for a copy that has not finished yet
+        public void setPendingChecksum(String targetPath, byte[] checksum) {
+                PendingCopy copy = pending.get(targetPath);
+                if (copy != null) {
+                        copy.checksum = checksum;
+                }
+        }
+
+        // Makes the duplicate wait for the copy to the target path, as one atomic
+        // step; false if no copy to that path is in progress
+        public boolean waitForCopy(String targetPath, SourceFileObject duplicate) {
+                return pending.computeIfPresent(targetPath, (path, copy) -> {
+                        copy.duplicates.add(duplicate);
+                        return copy;
+                }) != null;
+        }
+
+        // Records that the copy to the target path has finished; returns it with
+        // the duplicates that waited for it, or null if none was in progress
+        public PendingCopy endCopy(String targetPath) {
+                return pending.remove(targetPath);
+        }
+
 }
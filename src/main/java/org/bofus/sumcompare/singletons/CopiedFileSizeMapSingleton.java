@@ -0,0 +1,82 @@
+package org.bofus.sumcompare.singletons;
+
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sizes of the source files claimed for copying during this run that no
+ * target file shares. Each size keeps the copies whose full checksum has not
+ * been computed yet (the first copy of a size is not hashed), until a second
+ * source file of the same size makes them worth hashing.
+ *
+ * @author Jeff Humes
+ *
+ */
+@Slf4j
+public class CopiedFileSizeMapSingleton {
+        private static CopiedFileSizeMapSingleton copiedFileSizeMapSingleton;
+        // size -> {source file, target path} of claimed copies not hashed yet
+        private ConcurrentHashMap<Long, List<String[]>> map = null;
+        // size -> lock held while the copies of the size are hashed or released;
+        // copies are read under it, so it is not a monitor, which would pin a
+        // virtual thread to its carrier
+        private ConcurrentHashMap<Long, ReentrantLock> locks = null;
+
+        private CopiedFileSizeMapSingleton() {
+                map = new ConcurrentHashMap<Long, List<String[]>>();
+                locks = new ConcurrentHashMap<Long, ReentrantLock>();
+        }
+
+        public static CopiedFileSizeMapSingleton getInstance()
+                        throws IOException, SQLException, PropertyVetoException {
+                if (copiedFileSizeMapSingleton == null) {
+                        copiedFileSizeMapSingleton = new CopiedFileSizeMapSingleton();
+                        return copiedFileSizeMapSingleton;
+                } else {
+                        return copiedFileSizeMapSingleton;
+                }
+        }
+
+        // retrieve map from anywhere
+        public ConcurrentHashMap<Long, List<String[]>> getMap() {
+                return this.map;
+        }
+
+        // Records the copy as the first of its size, as one atomic step; false
+        // (nothing recorded) if a copy of this size was claimed before
+        public boolean claimSize(long size, String sourceFile, String targetPath) {
+                List<String[]> claims = Collections.synchronizedList(new ArrayList<String[]>());
+                claims.add(new String[] { sourceFile, targetPath });
+                return map.putIfAbsent(size, claims) == null;
+        }
+
+        // Removes a copy that failed from the copies not hashed yet; false if it
+        // is not among them (it was hashed, or its size was never claimed)
+        public boolean releaseSize(long size, String sourceFile, String targetPath) {
+                List<String[]> claims = map.get(size);
+                if (claims == null) {
+                        return false;
+                }
+                ReentrantLock lock = getLock(size);
+                lock.lock();
+                try {
+                        return claims.removeIf(claim -> claim[0].equals(sourceFile) && claim[1].equals(targetPath));
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        // The lock guarding the copies of a size not hashed yet
+        public ReentrantLock getLock(long size) {
+                return locks.computeIfAbsent(size, key -> new ReentrantLock());
+        }
+
+}
@@ -4,6 +4,7 @@ import java.beans.PropertyVetoException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.bofus.sumcompare.model.ExistingTargetFileObject;
@@ -14,10 +15,12 @@ import org.bofus.sumcompare.model.ExistingTargetFileObject;
  */
 public class ExistingTargetFileObjectArraySingleton {
         private static ExistingTargetFileObjectArraySingleton existingTargetFileObjectArraySingleton;
-        private ArrayList<ExistingTargetFileObject> list = null;
+        // Target files are hashed by many threads at once, so appends are
+        // synchronized; iterating the list needs a lock on it
+        private List<ExistingTargetFileObject> list = null;
 
         private ExistingTargetFileObjectArraySingleton() {
-                list = new ArrayList<ExistingTargetFileObject>();
+                list = Collections.synchronizedList(new ArrayList<ExistingTargetFileObject>());
         }
 
         public static ExistingTargetFileObjectArraySingleton getInstance()
@@ -31,7 +34,7 @@ public class ExistingTargetFileObjectArraySingleton {
         }
 
         // retrieve array from anywhere
-        public ArrayList<ExistingTargetFileObject> getArray() {
+        public List<ExistingTargetFileObject> getArray() {
                 return this.list;
         }
 
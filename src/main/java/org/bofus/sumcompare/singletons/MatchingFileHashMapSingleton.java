@@ -2,10 +2,21 @@ package org.bofus.sumcompare.singletons;
 
 import java.beans.PropertyVetoException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.bofus.sumcompare.localutil.FileUtilsLocal;
+import org.bofus.sumcompare.localutil.LongIntHashMap;
+import org.bofus.sumcompare.localutil.PathStore;
+import org.bofus.sumcompare.localutil.XXHashMessageDigest;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -16,11 +27,25 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class MatchingFileHashMapSingleton {
         private static MatchingFileHashMapSingleton matchingFileHashMapSingleton;
-        private HashMap<String, String> map = null;
+        // source file -> matching file, recorded as pairs of ids into a compact
+        // path store; a source file recorded again replaces its match
+        private PathStore paths = null;
+        private PathStore.IdList sources = null;
+        private PathStore.IdList matches = null;
+        // 64 bit hash of a source path -> its pair, to find pairs by source
+        // without holding the path Strings
+        private LongIntHashMap pairsByHash = null;
+        // the few sources whose hash is taken by another source -> their pair
+        private Map<String, Integer> collisions = null;
+        private Map<String, String> map = null;
 
         private MatchingFileHashMapSingleton() {
-                map = new HashMap<String, String>();
-
+                paths = new PathStore();
+                sources = paths.newIdList();
+                matches = paths.newIdList();
+                pairsByHash = new LongIntHashMap();
+                collisions = new HashMap<String, Integer>();
+                map = new PairMap();
         }
 
         public static MatchingFileHashMapSingleton getInstance()
@@ -33,14 +58,120 @@ public class MatchingFileHashMapSingleton {
                 }
         }
 
-        // retrieve array from anywhere
-        public HashMap<String, String> getMap() {
+        // retrieve map from anywhere: a view of the pairs in the order they were
+        // first recorded, which only supports reading and clear()
+        public Map<String, String> getMap() {
                 return this.map;
         }
 
         // Add element to array
-        public void addToMap(String key, String value) {
-                map.put(key, value);
+        public synchronized void addToMap(String key, String value) {
+                int pair = pairOf(key);
+                if (pair != LongIntHashMap.NO_VALUE) {
+                        if (!matches.get(pair).equals(value)) {
+                                matches.setId(pair, paths.addPath(value));
+                        }
+                        return;
+                }
+
+                pair = sources.size();
+                long hash = hash(key);
+                if (pairsByHash.containsKey(hash)) {
+                        collisions.put(key, pair);
+                } else {
+                        pairsByHash.put(hash, pair);
+                }
+                sources.addId(paths.addPath(key));
+                matches.addId(paths.addPath(value));
+        }
+
+        public synchronized void clear() {
+                sources.clear();
+                matches.clear();
+                pairsByHash.clear();
+                collisions.clear();
+                paths.clear();
+        }
+
+        // the pair recorded for this source, or NO_VALUE
+        private synchronized int pairOf(String source) {
+                int pair = pairsByHash.get(hash(source));
+                if (pair == LongIntHashMap.NO_VALUE || sources.get(pair).equals(source)) {
+                        return pair;
+                }
+                Integer collision = collisions.get(source);
+                return collision == null ? LongIntHashMap.NO_VALUE : collision;
+        }
+
+        private static long hash(String path) {
+                return FileUtilsLocal.digestToLong(
+                                XXHashMessageDigest.digest64(ByteBuffer.wrap(path.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        private synchronized int pairCount() {
+                return sources.size();
+        }
+
+        private class PairMap extends AbstractMap<String, String> {
+                @Override
+                public int size() {
+                        return pairCount();
+                }
+
+                @Override
+                public boolean containsKey(Object key) {
+                        return key instanceof String && pairOf((String) key) != LongIntHashMap.NO_VALUE;
+                }
+
+                @Override
+                public String get(Object key) {
+                        if (!(key instanceof String)) {
+                                return null;
+                        }
+                        synchronized (MatchingFileHashMapSingleton.this) {
+                                int pair = pairOf((String) key);
+                                return pair == LongIntHashMap.NO_VALUE ? null : matches.get(pair);
+                        }
+                }
+
+                @Override
+                public Set<Map.Entry<String, String>> entrySet() {
+                        return new AbstractSet<Map.Entry<String, String>>() {
+                                @Override
+                                public int size() {
+                                        return pairCount();
+                                }
+
+                                @Override
+                                public Iterator<Map.Entry<String, String>> iterator() {
+                                        int count = pairCount();
+                                        return new Iterator<Map.Entry<String, String>>() {
+                                                private int next;
+
+                                                @Override
+                                                public boolean hasNext() {
+                                                        return next < count;
+                                                }
+
+                                                @Override
+                                                public Map.Entry<String, String> next() {
+                                                        if (next >= count) {
+                                                                throw new NoSuchElementException();
+                                                        }
+                                                        Map.Entry<String, String> pair = new AbstractMap.SimpleImmutableEntry<String, String>(
+                                                                        sources.get(next), matches.get(next));
+                                                        next++;
+                                                        return pair;
+                                                }
+                                        };
+                                }
+                        };
+                }
+
+                @Override
+                public void clear() {
+                        MatchingFileHashMapSingleton.this.clear();
+                }
         }
 
 }
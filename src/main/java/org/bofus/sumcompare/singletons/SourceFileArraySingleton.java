@@ -3,8 +3,7 @@ package org.bofus.sumcompare.singletons;
 import java.beans.PropertyVetoException;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import org.bofus.sumcompare.localutil.PathStore;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -15,10 +14,11 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class SourceFileArraySingleton {
         private static SourceFileArraySingleton sourceFileListSingleton;
-        private ArrayList<String> list = null;
+        // Canonical paths of the files found, stored compactly
+        private PathStore list = null;
 
         private SourceFileArraySingleton() {
-                list = new ArrayList<String>();
+                list = new PathStore();
         }
 
         public static SourceFileArraySingleton getInstance() throws IOException, SQLException, PropertyVetoException {
@@ -31,13 +31,13 @@ public class SourceFileArraySingleton {
         }
 
         // retrieve array from anywhere
-        public ArrayList<String> getArray() {
+        public PathStore getArray() {
                 return this.list;
         }
 
-        // Add element to array
-        public void addToArray(String errorObject) {
-                list.add(errorObject);
+        // Add element to array, from any thread; returns its id in the array
+        public int addToArray(String path) {
+                return list.addPath(path);
         }
 
 }
@@ -3,9 +3,11 @@ package org.bofus.sumcompare.singletons;
 import java.beans.PropertyVetoException;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+
+import org.bofus.sumcompare.localutil.FileUtilsLocal;
+import org.bofus.sumcompare.localutil.LongIntHashMap;
+import org.bofus.sumcompare.localutil.PathStore;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -17,9 +19,15 @@ import lombok.extern.slf4j.Slf4j;
 public class SourceFileHashMapSingleton {
         private static SourceFileHashMapSingleton sourceFileHashMapSingleton;
         private HashMap<String, String> map = null;
+        // 64 bit checksums (XXHASH64, XXH3-64) are kept as raw longs pointing to
+        // the ids of the files in the source walk instead of hex String keys
+        private LongIntHashMap longMap = null;
+        private PathStore walked = null;
 
-        private SourceFileHashMapSingleton() {
+        private SourceFileHashMapSingleton() throws IOException, SQLException, PropertyVetoException {
                 map = new HashMap<String, String>();
+                longMap = new LongIntHashMap();
+                walked = SourceFileArraySingleton.getInstance().getArray();
 
         }
 
@@ -42,4 +50,52 @@ public class SourceFileHashMapSingleton {
                 map.put(key, value);
         }
 
+        // true if a file with this checksum has been recorded
+        public boolean containsChecksum(byte[] checksum) {
+                synchronized (map) {
+                        if (checksum.length == 8) {
+                                return longMap.containsKey(FileUtilsLocal.digestToLong(checksum));
+                        }
+                        return map.containsKey(FileUtilsLocal.toHex(checksum));
+                }
+        }
+
+        // path of the file recorded for this checksum, or null
+        public String getPath(byte[] checksum) {
+                synchronized (map) {
+                        if (checksum.length == 8) {
+                                int fileId = longMap.get(FileUtilsLocal.digestToLong(checksum));
+                                return fileId == LongIntHashMap.NO_VALUE ? null : walked.get(fileId);
+                        }
+                        return map.get(FileUtilsLocal.toHex(checksum));
+                }
+        }
+
+        // Add element keyed by raw checksum bytes, for a file of the source walk
+        public void addToMap(byte[] checksum, int walkId) {
+                synchronized (map) {
+                        if (checksum.length == 8) {
+                                longMap.put(FileUtilsLocal.digestToLong(checksum), walkId);
+                        } else {
+                                map.put(FileUtilsLocal.toHex(checksum), walked.get(walkId));
+                        }
+                }
+        }
+
+        // number of recorded checksums, of both key types
+        public int size() {
+                synchronized (map) {
+                        return map.size() + longMap.size();
+                }
+        }
+
+        // The paths of the source walk belong to SourceFileArraySingleton and
+        // are cleared there
+        public void clear() {
+                synchronized (map) {
+                        map.clear();
+                        longMap.clear();
+                }
+        }
+
 }
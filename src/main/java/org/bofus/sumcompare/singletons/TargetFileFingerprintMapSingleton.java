@@ -0,0 +1,74 @@
+package org.bofus.sumcompare.singletons;
+
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bofus.sumcompare.localutil.PathStore;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Index of target files by their cheap fingerprint (size + head/tail sample
+ * hash). Also tracks which size buckets have been fingerprinted and which
+ * fingerprint buckets have been promoted to full checksums in
+ * {@link TargetFileHashMapSingleton}. Files are kept as their ids in the
+ * {@link PathStore} of the target walk.
+ *
+ * @author Jeff Humes
+ *
+ */
+@Slf4j
+public class TargetFileFingerprintMapSingleton {
+        private static TargetFileFingerprintMapSingleton targetFileFingerprintMapSingleton;
+        private ConcurrentHashMap<String, PathStore.IdList> map = null;
+        private PathStore walked = null;
+        private Set<Long> fingerprintedSizes = null;
+        private Set<String> promotedFingerprints = null;
+
+        private TargetFileFingerprintMapSingleton() throws IOException, SQLException, PropertyVetoException {
+                map = new ConcurrentHashMap<String, PathStore.IdList>();
+                walked = TargetFileArraySingleton.getInstance().getArray();
+                fingerprintedSizes = ConcurrentHashMap.newKeySet();
+                promotedFingerprints = ConcurrentHashMap.newKeySet();
+        }
+
+        public static TargetFileFingerprintMapSingleton getInstance()
+                        throws IOException, SQLException, PropertyVetoException {
+                if (targetFileFingerprintMapSingleton == null) {
+                        targetFileFingerprintMapSingleton = new TargetFileFingerprintMapSingleton();
+                        return targetFileFingerprintMapSingleton;
+                } else {
+                        return targetFileFingerprintMapSingleton;
+                }
+        }
+
+        // retrieve map from anywhere
+        public ConcurrentHashMap<String, PathStore.IdList> getMap() {
+                return this.map;
+        }
+
+        // Add file to the bucket for its fingerprint, by its id in the walk
+        public void addToMap(String fingerprint, int walkId) {
+                map.computeIfAbsent(fingerprint, k -> walked.newIdList()).addId(walkId);
+        }
+
+        // size buckets whose files have all been fingerprinted
+        public Set<Long> getFingerprintedSizes() {
+                return this.fingerprintedSizes;
+        }
+
+        // fingerprint buckets whose files have all been fully hashed
+        public Set<String> getPromotedFingerprints() {
+                return this.promotedFingerprints;
+        }
+
+        public void clear() {
+                map.clear();
+                fingerprintedSizes.clear();
+                promotedFingerprints.clear();
+        }
+
+}
@@ -3,11 +3,12 @@ package org.bofus.sumcompare.singletons;
 import java.beans.PropertyVetoException;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.bofus.sumcompare.localutil.FileUtilsLocal;
+import org.bofus.sumcompare.localutil.LongIntHashMap;
+import org.bofus.sumcompare.localutil.PathStore;
+
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -16,13 +17,39 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class TargetFileHashMapSingleton {
+        // Number of independently locked parts of the 64 bit map (a power of two)
+        private static final int STRIPES = 64;
+        // Set in the ids of paths that are not in the target walk's store
+        private static final int COPY_BIT = 1 << 30;
+
         private static TargetFileHashMapSingleton targetFileHashMapSingleton;
-        private ConcurrentHashMap<String, String> map = null;
+        // hex checksum -> file id, for checksums other than 64 bit
+        private ConcurrentHashMap<String, Integer> map = null;
+        // 64 bit checksums (XXHASH64, XXH3-64) are kept as raw longs pointing to
+        // file ids instead of hex String keys, split into stripes that are
+        // locked separately, so lookups from many threads rarely wait
+        private LongStripe[] stripes = null;
+        // Files found by the target walk are kept by their id in its store;
+        // the copies made by this run are not in it and get a store of their
+        // own, their ids marked with COPY_BIT
+        private PathStore walked = null;
+        private PathStore copies = null;
 
-        private TargetFileHashMapSingleton() {
+        // One part of the 64 bit map, guarded by its own monitor
+        private static class LongStripe {
+                private final LongIntHashMap ids = new LongIntHashMap();
+        }
+
+        private TargetFileHashMapSingleton() throws IOException, SQLException, PropertyVetoException {
                 // Use ConcurrentHashMap for thread-safe operations without explicit
                 // synchronization
-                map = new ConcurrentHashMap<String, String>();
+                map = new ConcurrentHashMap<String, Integer>();
+                walked = TargetFileArraySingleton.getInstance().getArray();
+                copies = new PathStore();
+                stripes = new LongStripe[STRIPES];
+                for (int i = 0; i < STRIPES; i++) {
+                        stripes[i] = new LongStripe();
+                }
 
         }
 
@@ -35,14 +62,133 @@ public class TargetFileHashMapSingleton {
                 }
         }
 
-        // retrieve array from anywhere
-        public ConcurrentHashMap<String, String> getMap() {
+        // retrieve map from anywhere
+        public ConcurrentHashMap<String, Integer> getMap() {
                 return this.map;
         }
 
-        // Add element to array
-        public void addToMap(String key, String value) {
-                map.put(key, value);
+        // true if a file with this checksum has been recorded
+        public boolean containsChecksum(byte[] checksum) {
+                return getPath(checksum) != null;
+        }
+
+        // path of the file recorded for this checksum, or null
+        public String getPath(byte[] checksum) {
+                if (checksum.length == 8) {
+                        long key = FileUtilsLocal.digestToLong(checksum);
+                        LongStripe stripe = stripeFor(key);
+                        synchronized (stripe) {
+                                int fileId = stripe.ids.get(key);
+                                return fileId == LongIntHashMap.NO_VALUE ? null : pathOf(fileId);
+                        }
+                }
+                Integer fileId = map.get(FileUtilsLocal.toHex(checksum));
+                return fileId == null ? null : pathOf(fileId);
+        }
+
+        // Add element keyed by raw checksum bytes, for a file of the target walk
+        public void addToMap(byte[] checksum, int walkId) {
+                if (checksum.length == 8) {
+                        long key = FileUtilsLocal.digestToLong(checksum);
+                        LongStripe stripe = stripeFor(key);
+                        synchronized (stripe) {
+                                stripe.ids.put(key, walkId);
+                        }
+                } else {
+                        map.put(FileUtilsLocal.toHex(checksum), walkId);
+                }
+        }
+
+        // Records a file of the target walk for this checksum unless one is
+        // recorded already, as one atomic step; returns the path recorded
+        // earlier, or null if this call recorded the file
+        public String putIfAbsent(byte[] checksum, int walkId) {
+                return putIfAbsent(checksum, walkId, null);
+        }
+
+        // Same for a path that is not in the target walk, such as a copy made
+        // by this run; the path is only stored if it is recorded
+        public String putIfAbsent(byte[] checksum, String path) {
+                return putIfAbsent(checksum, LongIntHashMap.NO_VALUE, path);
+        }
+
+        // Removes the checksum if the given path is the one recorded for it;
+        // returns true if it was removed
+        public boolean remove(byte[] checksum, String path) {
+                if (checksum.length == 8) {
+                        long key = FileUtilsLocal.digestToLong(checksum);
+                        LongStripe stripe = stripeFor(key);
+                        synchronized (stripe) {
+                                int fileId = stripe.ids.get(key);
+                                if (fileId == LongIntHashMap.NO_VALUE || !pathOf(fileId).equals(path)) {
+                                        return false;
+                                }
+                                stripe.ids.remove(key);
+                                return true;
+                        }
+                }
+                String hex = FileUtilsLocal.toHex(checksum);
+                Integer fileId = map.get(hex);
+                return fileId != null && pathOf(fileId).equals(path) && map.remove(hex, fileId);
+        }
+
+        // number of recorded checksums, of both key types
+        public int size() {
+                int size = map.size();
+                for (LongStripe stripe : stripes) {
+                        synchronized (stripe) {
+                                size += stripe.ids.size();
+                        }
+                }
+                return size;
+        }
+
+        // The paths of the target walk belong to TargetFileArraySingleton and
+        // are cleared there
+        public void clear() {
+                map.clear();
+                for (LongStripe stripe : stripes) {
+                        synchronized (stripe) {
+                                stripe.ids.clear();
+                        }
+                }
+                copies.clear();
+        }
+
+        // Either walkId, or path when walkId is NO_VALUE
+        private String putIfAbsent(byte[] checksum, int walkId, String path) {
+                if (checksum.length == 8) {
+                        long key = FileUtilsLocal.digestToLong(checksum);
+                        LongStripe stripe = stripeFor(key);
+                        synchronized (stripe) {
+                                int fileId = stripe.ids.get(key);
+                                if (fileId != LongIntHashMap.NO_VALUE) {
+                                        return pathOf(fileId);
+                                }
+                                stripe.ids.put(key, walkId != LongIntHashMap.NO_VALUE ? walkId : copyId(path));
+                                return null;
+                        }
+                }
+                String hex = FileUtilsLocal.toHex(checksum);
+                boolean[] recorded = new boolean[1];
+                Integer fileId = map.computeIfAbsent(hex, k -> {
+                        recorded[0] = true;
+                        return walkId != LongIntHashMap.NO_VALUE ? walkId : copyId(path);
+                });
+                return recorded[0] ? null : pathOf(fileId);
+        }
+
+        private int copyId(String path) {
+                return COPY_BIT | copies.addPath(path);
+        }
+
+        private String pathOf(int fileId) {
+                return (fileId & COPY_BIT) != 0 ? copies.get(fileId & ~COPY_BIT) : walked.get(fileId);
+        }
+
+        // The top bits select the stripe; the stripe's map hashes the whole key
+        private LongStripe stripeFor(long key) {
+                return stripes[(int) (key >>> 58) & (STRIPES - 1)];
         }
 
 }
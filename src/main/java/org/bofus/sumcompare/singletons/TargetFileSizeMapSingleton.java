@@ -0,0 +1,61 @@
+package org.bofus.sumcompare.singletons;
+
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bofus.sumcompare.localutil.PathStore;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Index of target files by length (size -> file paths), filled during the
+ * directory walk. Files of different length can never match, so only sizes
+ * that collide need to be hashed. The paths are kept as ids into the
+ * {@link PathStore} of the walk.
+ * 
+ * @author Jeff Humes
+ *
+ */
+@Slf4j
+public class TargetFileSizeMapSingleton {
+        private static TargetFileSizeMapSingleton targetFileSizeMapSingleton;
+        private ConcurrentHashMap<Long, PathStore.IdList> map = null;
+
+        private TargetFileSizeMapSingleton() {
+                map = new ConcurrentHashMap<Long, PathStore.IdList>();
+        }
+
+        public static TargetFileSizeMapSingleton getInstance() throws IOException, SQLException, PropertyVetoException {
+                if (targetFileSizeMapSingleton == null) {
+                        targetFileSizeMapSingleton = new TargetFileSizeMapSingleton();
+                        return targetFileSizeMapSingleton;
+                } else {
+                        return targetFileSizeMapSingleton;
+                }
+        }
+
+        // retrieve map from anywhere
+        public ConcurrentHashMap<Long, PathStore.IdList> getMap() {
+                return this.map;
+        }
+
+        // Add file to the bucket for its size, by its id in the store
+        public void addToMap(long size, PathStore store, int fileId) {
+                map.computeIfAbsent(size, k -> store.newIdList()).addId(fileId);
+        }
+
+        // true if at least one file of this size exists
+        public boolean containsSize(long size) {
+                return map.containsKey(size);
+        }
+
+        // number of files sharing this size
+        public int getCount(long size) {
+                List<String> bucket = map.get(size);
+                return bucket == null ? 0 : bucket.size();
+        }
+
+}
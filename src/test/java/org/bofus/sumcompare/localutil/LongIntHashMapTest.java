@@ -0,0 +1,154 @@
+package org.bofus.sumcompare.localutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks {@link LongIntHashMap} against {@link HashMap}, with tables small
+ * enough that probe runs collide, wrap around and are cut by removals.
+ */
+class LongIntHashMapTest {
+
+    @Test
+    void putGetAndReplace() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(42));
+        assertFalse(map.containsKey(42));
+
+        assertEquals(LongIntHashMap.NO_VALUE, map.put(42, 1));
+        assertEquals(1, map.put(42, 2));
+        assertEquals(2, map.get(42));
+        assertEquals(2, map.putIfAbsent(42, 3));
+        assertEquals(2, map.get(42));
+        assertEquals(LongIntHashMap.NO_VALUE, map.putIfAbsent(43, 3));
+        assertEquals(2, map.size());
+
+        // Every long is a key, including 0 and negative values
+        map.put(0, 4);
+        map.put(-1, 5);
+        map.put(Long.MIN_VALUE, 6);
+        assertEquals(4, map.get(0));
+        assertEquals(5, map.get(-1));
+        assertEquals(6, map.get(Long.MIN_VALUE));
+        assertEquals(5, map.size());
+
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, -1));
+    }
+
+    @Test
+    void collidingKeysInTinyTables() {
+        // Three keys in four slots: across many key sets, keys share home
+        // slots, probe runs wrap around the end of the table, and removals
+        // have to move entries back across the wrap
+        Random random = new Random(3);
+        for (int round = 0; round < 10000; round++) {
+            LongIntHashMap map = new LongIntHashMap(1);
+            long[] keys = { random.nextLong(), random.nextLong(), random.nextLong() };
+            for (int i = 0; i < keys.length; i++) {
+                map.put(keys[i], i);
+            }
+            int removed = random.nextInt(keys.length);
+            assertEquals(removed, map.remove(keys[removed]));
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(i == removed ? LongIntHashMap.NO_VALUE : i, map.get(keys[i]));
+            }
+            assertEquals(keys.length - 1, map.size());
+        }
+    }
+
+    @Test
+    void removeShiftsLaterEntriesBack() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        // More keys than slots at first, so runs form and the table resizes
+        for (int i = 0; i < 200; i++) {
+            long key = (long) i * 0x100000001L;
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        // Removing every third key leaves gaps in the middle of runs
+        for (int i = 0; i < 200; i += 3) {
+            long key = (long) i * 0x100000001L;
+            assertEquals(i, map.remove(key));
+            assertEquals(LongIntHashMap.NO_VALUE, map.remove(key));
+            expected.remove(key);
+        }
+        assertSameContent(expected, map);
+    }
+
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(7);
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int step = 0; step < 200000; step++) {
+            // A small key range, so keys are often present, collide and return
+            long key = random.nextInt(5000) * 0x9E3779B97F4A7C15L;
+            int value = random.nextInt(Integer.MAX_VALUE);
+            switch (random.nextInt(4)) {
+            case 0:
+                assertEquals(orNoValue(expected.put(key, value)), map.put(key, value));
+                break;
+            case 1:
+                assertEquals(orNoValue(expected.putIfAbsent(key, value)), map.putIfAbsent(key, value));
+                break;
+            case 2:
+                assertEquals(orNoValue(expected.remove(key)), map.remove(key));
+                break;
+            default:
+                assertEquals(orNoValue(expected.get(key)), map.get(key));
+                break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertSameContent(expected, map);
+    }
+
+    @Test
+    void resizeKeepsEveryEntry() {
+        LongIntHashMap map = new LongIntHashMap(2);
+        for (int i = 0; i < 100000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(100000, map.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, map.get(i));
+        }
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(100000));
+    }
+
+    @Test
+    void clearEmptiesTheMap() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(map.containsKey(i));
+        }
+        map.put(5, 6);
+        assertTrue(map.containsKey(5));
+        assertEquals(1, map.size());
+    }
+
+    private static int orNoValue(Integer value) {
+        return value == null ? LongIntHashMap.NO_VALUE : value;
+    }
+
+    private static void assertSameContent(Map<Long, Integer> expected, LongIntHashMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().intValue(), map.get(entry.getKey()), "key " + entry.getKey());
+        }
+    }
+}
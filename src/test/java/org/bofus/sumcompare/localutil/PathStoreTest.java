@@ -0,0 +1,134 @@
+package org.bofus.sumcompare.localutil;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link PathStore} gives back every path as added, and stores
+ * each directory once.
+ */
+class PathStoreTest {
+
+    @Test
+    void getRebuildsEveryPath() {
+        PathStore store = new PathStore();
+        String[] paths = {
+                path("", "home", "user", "a.txt"),
+                path("", "home", "user", "b.txt"),
+                path("", "home", "other", "a.txt"),
+                path("", "top.txt"),
+                "relative.txt",
+                path("relative", "dir", "file"),
+                path("", "home", "user", "Ünïcödé ファイル.jpg"),
+                path("", "home", "user", ""),
+        };
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(i, store.addPath(paths[i]));
+        }
+
+        assertEquals(paths.length, store.size());
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], store.get(i));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(paths.length));
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(-1));
+    }
+
+    @Test
+    void directoriesAreStoredOnce() {
+        PathStore store = new PathStore();
+        store.addPath(path("", "a", "b", "1"));
+        store.addPath(path("", "a", "b", "2"));
+        // "", "a" and "a/b"
+        assertEquals(3, store.directoryCount());
+
+        // Back to a known directory after another one
+        store.addPath(path("", "a", "c", "1"));
+        store.addPath(path("", "a", "b", "3"));
+        assertEquals(4, store.directoryCount());
+
+        // The same name under another parent is another directory
+        store.addPath(path("", "x", "b", "1"));
+        assertEquals(6, store.directoryCount());
+
+        assertEquals(path("", "a", "b", "3"), store.get(3));
+        assertEquals(path("", "x", "b", "1"), store.get(4));
+    }
+
+    @Test
+    void namesSpanManyPages() {
+        PathStore store = new PathStore();
+        List<String> paths = new ArrayList<String>();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            name.append('n');
+        }
+        // About 5 MB of names, more than one page of 1 MB
+        for (int i = 0; i < 5000; i++) {
+            String path = path("", "dir" + (i % 7), name + Integer.toString(i));
+            paths.add(path);
+            store.add(path);
+        }
+        assertEquals(paths, store);
+
+        String tooLong = name.toString().repeat(70);
+        assertThrows(IllegalArgumentException.class, () -> store.addPath(path("", tooLong)));
+    }
+
+    @Test
+    void clearInvalidatesIds() {
+        PathStore store = new PathStore();
+        store.addPath(path("", "a", "1"));
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.directoryCount());
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(0));
+
+        assertEquals(0, store.addPath(path("", "b", "2")));
+        assertEquals(path("", "b", "2"), store.get(0));
+    }
+
+    @Test
+    void idListHoldsIdsOfTheStore() {
+        PathStore store = new PathStore();
+        int first = store.addPath(path("", "a", "1"));
+        int second = store.addPath(path("", "a", "2"));
+
+        PathStore.IdList list = store.newIdList();
+        list.addId(second);
+        list.addId(first);
+        list.add(path("", "b", "3"));
+        assertEquals(3, list.size());
+        assertEquals(path("", "a", "2"), list.get(0));
+        assertEquals(path("", "b", "3"), list.get(2));
+        assertEquals(3, store.size());
+        assertArrayEquals(new int[] { second, first, 2 }, list.toIdArray());
+
+        list.setId(0, first);
+        assertEquals(first, list.getId(0));
+        assertEquals(path("", "a", "1"), list.get(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.getId(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.setId(3, first));
+
+        // Grows past its initial capacity
+        for (int i = 0; i < 100; i++) {
+            list.addId(first);
+        }
+        assertEquals(103, list.size());
+
+        list.clear();
+        assertEquals(0, list.size());
+        assertEquals(3, store.size());
+    }
+
+    private static String path(String... names) {
+        return String.join(File.separator, names);
+    }
+}
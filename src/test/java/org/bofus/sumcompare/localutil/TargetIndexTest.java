@@ -0,0 +1,163 @@
+package org.bofus.sumcompare.localutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the on-disk {@link TargetIndex}: lookups, stale records, growing the
+ * tables and reopening the file.
+ */
+class TargetIndexTest {
+
+    private static final String ALGORITHM = "XXHASH64";
+    private static final int DIGEST_LENGTH = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void addAndLookup() throws IOException {
+        Path indexFile = directory.resolve("index.idx");
+        Path a = file("a.txt", "alpha");
+        Path b = file("b.txt", "beta");
+        try (TargetIndex index = TargetIndex.openForWriting(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            index.add(digest(1), a.toString());
+            index.add(digest(2), b.toString());
+            // Adding an unchanged file again changes nothing
+            index.add(digest(1), a.toString());
+
+            assertEquals(2, index.size());
+            assertEntry(index.lookup(digest(1)), a, digest(1));
+            assertEntry(index.lookup(digest(2)), b, digest(2));
+            assertNull(index.lookup(digest(3)));
+            assertThrows(IllegalArgumentException.class, () -> index.lookup(new byte[4]));
+        }
+    }
+
+    @Test
+    void staleRecordFallsBackToEarlierRecord() throws IOException {
+        Path indexFile = directory.resolve("index.idx");
+        Path a = file("a.txt", "same");
+        Path b = file("b.txt", "same");
+        try (TargetIndex index = TargetIndex.openForWriting(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            index.add(digest(1), a.toString());
+            index.add(digest(1), b.toString());
+            assertEquals(1, index.size());
+            // The file added last is found first
+            assertEntry(index.lookup(digest(1)), b, digest(1));
+
+            // b changes: its record is stale, so the lookup falls back to a
+            Files.writeString(b, "changed");
+            assertEntry(index.lookup(digest(1)), a, digest(1));
+
+            // b is indexed again with its new content; the old digest still finds a
+            index.add(digest(2), b.toString());
+            assertEntry(index.lookup(digest(2)), b, digest(2));
+            assertEntry(index.lookup(digest(1)), a, digest(1));
+
+            // No current file is left with the first digest
+            Files.delete(a);
+            assertNull(index.lookup(digest(1)));
+        }
+    }
+
+    @Test
+    void growKeepsEveryEntry() throws IOException {
+        Path indexFile = directory.resolve("index.idx");
+        Path files = Files.createDirectory(directory.resolve("files"));
+        // One more path than fits before the tables are doubled
+        int count = TargetIndex.INITIAL_CAPACITY / 2 + 1;
+        Path[] paths = new Path[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = Files.createFile(files.resolve("f" + i));
+        }
+
+        try (TargetIndex index = TargetIndex.openForWriting(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            for (int i = 0; i < count - 1; i++) {
+                index.add(digest(i), paths[i].toString());
+            }
+            long sizeBeforeGrow = Files.size(indexFile);
+            index.add(digest(count - 1), paths[count - 1].toString());
+            // A digest slot and a path slot more for every slot there was
+            long addedSlots = (long) TargetIndex.INITIAL_CAPACITY * (DIGEST_LENGTH + 3 * Long.BYTES);
+            assertTrue(Files.size(indexFile) - sizeBeforeGrow >= addedSlots, "tables were not doubled");
+
+            assertEquals(count, index.size());
+            for (int i = 0; i < count; i++) {
+                assertEntry(index.lookup(digest(i)), paths[i], digest(i));
+            }
+            // The path table was rehashed too: re-adding finds the existing records
+            index.add(digest(0), paths[0].toString());
+            assertEquals(count, index.size());
+        }
+
+        try (TargetIndex index = TargetIndex.openForReading(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            assertEquals(count, index.size());
+            assertEntry(index.lookup(digest(count - 1)), paths[count - 1], digest(count - 1));
+        }
+    }
+
+    @Test
+    void reopenReadOnly() throws IOException {
+        Path indexFile = directory.resolve("index.idx");
+        Path a = file("a.txt", "alpha");
+        try (TargetIndex index = TargetIndex.openForWriting(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            index.add(digest(1), a.toString());
+        }
+
+        try (TargetIndex index = TargetIndex.openForReading(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            assertEquals(1, index.size());
+            assertEntry(index.lookup(digest(1)), a, digest(1));
+            assertThrows(IllegalStateException.class, () -> index.add(digest(2), a.toString()));
+        }
+
+        assertThrows(IOException.class, () -> TargetIndex.openForReading(indexFile, "SHA1", 20).close());
+        assertThrows(NoSuchFileException.class,
+                () -> TargetIndex.openForReading(directory.resolve("missing.idx"), ALGORITHM, DIGEST_LENGTH));
+    }
+
+    @Test
+    void oldFormatIsRebuiltWhenWritable() throws IOException {
+        Path indexFile = directory.resolve("index.idx");
+        ByteBuffer header = ByteBuffer.allocate(64);
+        header.putInt(0x53434931); // "SCI1"
+        header.putInt(DIGEST_LENGTH);
+        Files.write(indexFile, header.array());
+
+        assertThrows(IOException.class, () -> TargetIndex.openForReading(indexFile, ALGORITHM, DIGEST_LENGTH));
+        Path a = file("a.txt", "alpha");
+        try (TargetIndex index = TargetIndex.openForWriting(indexFile, ALGORITHM, DIGEST_LENGTH)) {
+            assertEquals(0, index.size());
+            index.add(digest(1), a.toString());
+            assertEntry(index.lookup(digest(1)), a, digest(1));
+        }
+    }
+
+    private Path file(String name, String content) throws IOException {
+        return Files.write(directory.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Distinct digests whose first bytes differ, so they spread over the slots
+    private static byte[] digest(int value) {
+        return ByteBuffer.allocate(DIGEST_LENGTH).putLong((long) value * 0x9E3779B97F4A7C15L).array();
+    }
+
+    private static void assertEntry(TargetIndex.Entry entry, Path path, byte[] digest) {
+        assertNotNull(entry, "no entry for " + path);
+        assertEquals(path.toString(), entry.getPath());
+        assertEquals(FileUtilsLocal.toHex(digest), FileUtilsLocal.toHex(entry.getDigest()));
+    }
+}
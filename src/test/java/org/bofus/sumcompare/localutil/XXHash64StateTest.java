@@ -0,0 +1,134 @@
+package org.bofus.sumcompare.localutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Checks {@link XXHash64State} against lz4-java's {@code XXHash64}, for
+ * lengths around every stripe edge and updates split at random points into
+ * arrays, heap and direct buffers and single bytes.
+ */
+class XXHash64StateTest {
+
+    private static final long SEED = 0;
+    private static final int MAX_LENGTH = 200000;
+
+    private static final XXHash64 REFERENCE = XXHashFactory.fastestInstance().hash64();
+
+    @Test
+    void wholeArrayMatchesReference() {
+        byte[] data = randomBytes(MAX_LENGTH, 1);
+        XXHash64State state = new XXHash64State(SEED);
+        for (int length : lengths()) {
+            state.reset();
+            state.update(data, 0, length);
+            assertEquals(REFERENCE.hash(data, 0, length, SEED), state.getValue(), "length " + length);
+        }
+    }
+
+    @Test
+    void directBufferMatchesReference() {
+        byte[] data = randomBytes(MAX_LENGTH, 2);
+        ByteBuffer direct = ByteBuffer.allocateDirect(MAX_LENGTH);
+        direct.put(data).clear();
+        XXHash64State state = new XXHash64State(SEED);
+        for (int length : lengths()) {
+            state.reset();
+            state.update(direct.duplicate().limit(length));
+            assertEquals(REFERENCE.hash(data, 0, length, SEED), state.getValue(), "length " + length);
+        }
+    }
+
+    @Test
+    void mixedUpdatesMatchReference() {
+        byte[] data = randomBytes(MAX_LENGTH, 3);
+        ByteBuffer direct = ByteBuffer.allocateDirect(MAX_LENGTH);
+        direct.put(data).clear();
+        Random random = new Random(4);
+        XXHash64State state = new XXHash64State(SEED);
+        for (int length : lengths()) {
+            state.reset();
+            int offset = 0;
+            while (offset < length) {
+                int chunk = Math.min(length - offset, chunkLength(random));
+                switch (random.nextInt(4)) {
+                case 0:
+                    state.update(data, offset, chunk);
+                    break;
+                case 1:
+                    state.update(ByteBuffer.wrap(data, offset, chunk));
+                    break;
+                case 2:
+                    state.update(direct.duplicate().limit(offset + chunk).position(offset));
+                    break;
+                default:
+                    chunk = 1;
+                    state.update(new byte[] { data[offset] }, 0, 1);
+                    break;
+                }
+                offset += chunk;
+            }
+            assertEquals(REFERENCE.hash(data, 0, length, SEED), state.getValue(), "length " + length);
+        }
+    }
+
+    @Test
+    void streamingDigestMatchesOneShot() {
+        byte[] data = randomBytes(MAX_LENGTH, 5);
+        Random random = new Random(6);
+        XXHashMessageDigest digest = new XXHashMessageDigest("XXHASH64");
+        for (int length : lengths()) {
+            int offset = 0;
+            while (offset < length) {
+                if (random.nextBoolean()) {
+                    digest.update(data[offset++]);
+                } else {
+                    int chunk = Math.min(length - offset, chunkLength(random));
+                    digest.update(data, offset, chunk);
+                    offset += chunk;
+                }
+            }
+            byte[] oneShot = XXHashMessageDigest.digest64(ByteBuffer.wrap(data, 0, length));
+            assertEquals(REFERENCE.hash(data, 0, length, SEED), FileUtilsLocal.digestToLong(oneShot),
+                    "length " + length);
+            assertEquals(FileUtilsLocal.digestToLong(oneShot), FileUtilsLocal.digestToLong(digest.digest()),
+                    "length " + length);
+        }
+    }
+
+    // Every length up to a few stripes, then steps around stripe edges up to
+    // MAX_LENGTH
+    private static List<Integer> lengths() {
+        List<Integer> lengths = new ArrayList<Integer>();
+        for (int length = 0; length <= 200; length++) {
+            lengths.add(length);
+        }
+        for (int length = 256; length < MAX_LENGTH; length = length * 3 / 2) {
+            lengths.add(length - 1);
+            lengths.add(length);
+            lengths.add(length + 1);
+        }
+        lengths.add(MAX_LENGTH);
+        return lengths;
+    }
+
+    // Mostly short chunks, which cross stripe edges, with some long ones
+    private static int chunkLength(Random random) {
+        return random.nextInt(8) == 0 ? 1 + random.nextInt(8192) : 1 + random.nextInt(64);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}